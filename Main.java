@@ -1,6 +1,9 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import db.Database;
 
@@ -10,6 +13,7 @@ public class Main {
 
     public static void main(String[] args) throws IOException {
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
         Database db = new Database();
         System.out.print(PROMPT);
 
@@ -20,10 +24,10 @@ public class Main {
             }
 
             if (!line.trim().isEmpty()) {
-                String result = db.transact(line);
-                if (result.length() > 0) {
-                    System.out.println(result);
+                if (db.transact(line, out)) {
+                    out.write(System.lineSeparator());
                 }
+                out.flush();
             }
             System.out.print(PROMPT);
         }
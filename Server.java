@@ -0,0 +1,302 @@
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+
+import db.Database;
+
+/* Serves one shared Database to clients over TCP on the loopback interface.
+**
+** The protocol is line oriented. Each line a client sends is one query, and
+** each query gets one response: the lines of its result followed by a line
+** holding a single ".". Result lines that start with "." get an extra "." in
+** front, as in SMTP. Blank lines are ignored, and "exit" closes the connection.
+** Clients may pipeline, sending several queries before reading the responses;
+** the queries of a connection run in order, and responses are flushed once no
+** more queries are waiting.
+**
+** Each connection runs on its own virtual thread when the runtime has them
+** (Java 21 and later), and on a pooled platform thread otherwise. */
+public class Server {
+    private static final int DEFAULT_PORT = 7707;
+    private static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    private static final long SHUTDOWN_MILLIS = 5000;
+    /* How often idle connections check whether the server is stopping. */
+    private static final int POLL_MILLIS = 200;
+    private static final String EXIT = "exit";
+
+    private final Database db;
+    private final Semaphore slots;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private ServerSocket listener;
+    private ExecutorService connections;
+    private Thread acceptor;
+    private volatile boolean stopping;
+
+    public Server(Database db, int maxConnections) {
+        this.db = db;
+        this.slots = new Semaphore(maxConnections);
+    }
+
+    /* Starts listening on 'port' of the loopback interface, or on a free port if
+    ** 'port' is 0. Returns the port in use. */
+    public int start(int port) throws IOException {
+        listener = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        connections = newConnectionExecutor();
+        acceptor = new Thread(this::accept, "db-server-accept");
+        acceptor.start();
+        return listener.getLocalPort();
+    }
+
+    /* Stops accepting connections and lets open connections finish the queries
+    ** they have already sent, waiting up to 'timeoutMillis' before closing them. */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        stopping = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        acceptor.join();
+        connections.shutdown();
+        if (!connections.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            for (Socket s : open) {
+                close(s);
+            }
+            connections.shutdownNow();
+        }
+    }
+
+    /* Waits until the server has been shut down. */
+    public void awaitShutdown() throws InterruptedException {
+        acceptor.join();
+        connections.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /* Returns an executor running each task on a new virtual thread, falling back
+    ** to a cached thread pool on runtimes without virtual threads. */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void accept() {
+        while (!stopping) {
+            Socket s;
+            try {
+                s = listener.accept();
+            } catch (IOException e) {
+                if (!stopping) {
+                    System.err.println("ERROR: " + e.getMessage());
+                }
+                return;
+            }
+            if (!slots.tryAcquire()) {
+                refuse(s);
+                continue;
+            }
+            open.add(s);
+            connections.execute(() -> {
+                try {
+                    serve(s);
+                } finally {
+                    open.remove(s);
+                    close(s);
+                    slots.release();
+                }
+            });
+        }
+    }
+
+    private static void refuse(Socket s) {
+        try (Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write("ERROR: Too many connections.\n.\n");
+        } catch (IOException e) {
+            // The client has gone already
+        }
+        close(s);
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /* Runs the queries of one connection in order until it is closed, or until
+    ** the server stops and no queries are waiting. */
+    private void serve(Socket s) {
+        try {
+            s.setSoTimeout(POLL_MILLIS);
+            LineReader in = new LineReader(s.getInputStream());
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(),
+                    StandardCharsets.UTF_8), 1 << 16);
+            while (!stopping || in.ready()) {
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (line == null || EXIT.equals(line.trim())) {
+                    break;
+                } else if (!line.trim().isEmpty()) {
+                    respond(line, out);
+                }
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // Closed by the client, or forcibly by shutdown
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    private void respond(String query, Writer out) throws IOException {
+        DotWriter body = new DotWriter(out);
+        try {
+            db.transact(query, body);
+        } catch (RuntimeException e) {
+            body.write("ERROR: " + e);
+        }
+        if (!body.atLineStart) {
+            out.write('\n');
+        }
+        out.write(".\n");
+    }
+
+    /* Puts an extra '.' in front of every line that starts with one. */
+    private static class DotWriter extends FilterWriter {
+        private boolean atLineStart = true;
+
+        DotWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (atLineStart && c == '.') {
+                out.write('.');
+            }
+            out.write(c);
+            atLineStart = (c == '\n');
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            write(new String(buf, off, len), 0, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = str.charAt(i);
+                if (atLineStart && c == '.') {
+                    out.write(str, start, i - start);
+                    out.write('.');
+                    start = i;
+                }
+                atLineStart = (c == '\n');
+            }
+            out.write(str, start, end - start);
+        }
+    }
+
+    /* Reads UTF-8 lines from a socket. Unlike BufferedReader it keeps a partly
+    ** read line when a read times out, so the caller can poll. */
+    private static class LineReader {
+        private final InputStream in;
+        private byte[] buf = new byte[8192];
+        private int start;
+        private int end;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /* Returns the next line, or null at the end of the stream. Throws
+        ** SocketTimeoutException if no full line arrives in time. */
+        String readLine() throws IOException {
+            int scanned = start;
+            while (true) {
+                for (int i = scanned; i < end; i++) {
+                    if (buf[i] == '\n') {
+                        int stop = (i > start && buf[i - 1] == '\r') ? i - 1 : i;
+                        String line = new String(buf, start, stop - start, StandardCharsets.UTF_8);
+                        start = i + 1;
+                        return line;
+                    }
+                }
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else if (end == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                scanned = end;
+                int n = in.read(buf, end, buf.length - end);
+                if (n < 0) {
+                    if (start == end) {
+                        return null;
+                    }
+                    String line = new String(buf, start, end - start, StandardCharsets.UTF_8);
+                    start = end;
+                    return line;
+                }
+                end += n;
+            }
+        }
+
+        /* Returns whether more input has arrived that has not been read yet. */
+        boolean ready() throws IOException {
+            return start < end || in.available() > 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException,
+            JMException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int max = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_MAX_CONNECTIONS;
+        Database db = new Database();
+        Server server = new Server(db, max);
+        int bound = server.start(port);
+        db.registerMBean("server:" + bound);
+        System.out.println("Listening on port " + bound);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.shutdown(SHUTDOWN_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        server.awaitShutdown();
+    }
+}
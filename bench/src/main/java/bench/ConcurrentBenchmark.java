@@ -0,0 +1,89 @@
+package bench;
+
+import db.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* One Database shared by several threads: readers alone, and readers running
+** alongside a thread inserting into the table they read. oneReader and
+** allReaders run the same select on 1 thread and on one thread per core, so
+** their scores show how read throughput scales with the core count. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentBenchmark {
+
+    @Param({"100000"})
+    int rows;
+
+    private File dir;
+    private Database db;
+    private String t;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tables.tempDir();
+        t = Tables.write(dir, "t", TableGenerator.standard(7, rows, 3, 1000, 0));
+        db = Tables.load(t);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Tables.delete(dir);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String readers() {
+        return db.transact("select Id,I0 from " + t + " where K == 7");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String oneReader() {
+        return db.transact("select Id,I0 from " + t + " where K == 7");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String allReaders() {
+        return db.transact("select Id,I0 from " + t + " where K == 7");
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String mixedRead() {
+        return db.transact("select Id,I0 from " + t + " where K == 7");
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public String mixedInsert() {
+        int i = rows + next.getAndIncrement();
+        return db.transact("insert into " + t + " values " + i + ",7," + i + ",1.5,'v1'");
+    }
+}
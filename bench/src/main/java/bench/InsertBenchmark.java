@@ -0,0 +1,81 @@
+package bench;
+
+import db.Database;
+import db.PreparedStatement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/* Inserting rows one statement at a time, through a prepared statement, as a
+** multi-row insert, and through Database.appendBatch. Scores are per row. The
+** table is recreated for each iteration so it does not grow without bound. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertBenchmark {
+
+    private static final int BATCH = 1000;
+
+    private Database db;
+    private PreparedStatement prepared;
+    private String multiRow;
+    private List<List<Object>> batch;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        db = new Database();
+        Tables.run(db, "create table t (Id int, K int, F float, S string)");
+        prepared = db.prepare("insert into t values ?,?,?,?");
+        StringBuilder s = new StringBuilder("insert into t values ");
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            s.append(i == 0 ? "" : ",").append('(').append(i).append(',').append(i % 97)
+                    .append(",1.5,'v").append(i % 13).append("')");
+            batch.add(Arrays.<Object>asList(i, i % 97, 1.5f, "'v" + (i % 13) + "'"));
+        }
+        multiRow = s.toString();
+    }
+
+    @Benchmark
+    public String single() {
+        int i = next++;
+        return db.transact("insert into t values " + i + "," + (i % 97) + ",1.5,'v" + (i % 13) + "'");
+    }
+
+    @Benchmark
+    public String prepared() {
+        int i = next++;
+        return prepared.execute(Integer.toString(i), Integer.toString(i % 97), "1.5",
+                "'v" + (i % 13) + "'");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public String multiRow() {
+        return db.transact(multiRow);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public String appendBatch() {
+        return db.appendBatch("t", batch);
+    }
+}
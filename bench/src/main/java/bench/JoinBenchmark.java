@@ -0,0 +1,72 @@
+package bench;
+
+import db.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/* Natural joins of a fact table with one and two dimension tables, with the
+** fact table's join key uniform or skewed. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinBenchmark {
+
+    private static final int KEYS = 1000;
+    private static final int GROUPS = 50;
+
+    @Param({"100000"})
+    int rows;
+
+    @Param({"0", "1.2"})
+    double skew;
+
+    private File dir;
+    private Database db;
+    private String fact;
+    private String keys;
+    private String groups;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tables.tempDir();
+        fact = Tables.write(dir, "fact", TableGenerator.standard(3, rows, 3, KEYS, skew));
+        keys = Tables.write(dir, "keys", new TableGenerator(4).rows(KEYS)
+                .serial("K").ints("G", GROUPS).strings("Name", KEYS));
+        groups = Tables.write(dir, "groups", new TableGenerator(5).rows(GROUPS)
+                .serial("G").strings("Region", 10));
+        db = Tables.load(fact, keys, groups);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Tables.delete(dir);
+    }
+
+    @Benchmark
+    public String twoWay() {
+        return db.transact("select Id,Name from " + fact + "," + keys + " where I0 < 100000");
+    }
+
+    @Benchmark
+    public String threeWay() {
+        return db.transact("select Id,Name,Region from " + fact + "," + keys + "," + groups
+                + " where I0 < 100000");
+    }
+}
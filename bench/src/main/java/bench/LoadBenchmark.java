@@ -0,0 +1,67 @@
+package bench;
+
+import db.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/* Loading a table from its text .tbl file and from its binary .tbc file. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"100000"})
+    int rows;
+
+    @Param({"6"})
+    int columns;
+
+    private File dir;
+    private String text;
+    private String binary;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tables.tempDir();
+        text = Tables.write(dir, "text", TableGenerator.standard(1, rows, columns, 1000, 0));
+        binary = Tables.write(dir, "binary", TableGenerator.standard(1, rows, columns, 1000, 0));
+        Tables.run(Tables.load(binary), "store " + binary + " as binary");
+        new File(binary + ".tbl").delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Tables.delete(dir);
+    }
+
+    @Benchmark
+    public Database loadText() {
+        Database db = new Database();
+        Tables.run(db, "load " + text);
+        return db;
+    }
+
+    @Benchmark
+    public Database loadBinary() {
+        Database db = new Database();
+        Tables.run(db, "load " + binary);
+        return db;
+    }
+}
@@ -0,0 +1,80 @@
+package bench;
+
+import db.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/* Selects from one table: all rows, an equality and a range filter on
+** unindexed columns, an indexed equality, and computed expression columns. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectBenchmark {
+
+    @Param({"100000"})
+    int rows;
+
+    @Param({"0", "1.2"})
+    double skew;
+
+    private File dir;
+    private Database db;
+    private String t;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tables.tempDir();
+        t = Tables.write(dir, "t", TableGenerator.standard(2, rows, 3, 1000, skew));
+        db = Tables.load(t);
+        Tables.run(db, "create table indexed as select * from " + t);
+        Tables.run(db, "create index ik on indexed(K) using hash");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Tables.delete(dir);
+    }
+
+    @Benchmark
+    public String selectAll() {
+        return db.transact("select * from " + t);
+    }
+
+    @Benchmark
+    public String whereEquals() {
+        return db.transact("select Id,I0 from " + t + " where K == 7");
+    }
+
+    @Benchmark
+    public String whereRange() {
+        return db.transact("select Id,S2 from " + t + " where I0 < 10000");
+    }
+
+    @Benchmark
+    public String whereIndexed() {
+        return db.transact("select Id,I0 from indexed where K == 7");
+    }
+
+    @Benchmark
+    public String expressions() {
+        return db.transact("select Id,I0 * 2 + K as X,F1 / 3.0 as Y from " + t
+                + " where Id < 50000");
+    }
+}
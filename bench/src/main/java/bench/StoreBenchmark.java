@@ -0,0 +1,58 @@
+package bench;
+
+import db.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/* Storing a loaded table as a text .tbl file and as a binary .tbc file. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"100000"})
+    int rows;
+
+    private File dir;
+    private Database db;
+    private String t;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tables.tempDir();
+        t = Tables.write(dir, "t", TableGenerator.standard(6, rows, 6, 1000, 0));
+        db = Tables.load(t);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Tables.delete(dir);
+    }
+
+    @Benchmark
+    public String storeText() {
+        return Tables.run(db, "store " + t);
+    }
+
+    @Benchmark
+    public String storeBinary() {
+        return Tables.run(db, "store " + t + " as binary");
+    }
+}
@@ -0,0 +1,130 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/* Writes synthetic .tbl files. Columns are added one at a time: serial ids,
+** join keys drawn from a fixed number of distinct values with a Zipf skew,
+** bounded ints, floats, and strings drawn from a fixed number of distinct
+** values. The same seed always produces the same file.
+**
+** From the command line,
+**
+**   java -cp benchmarks.jar bench.TableGenerator <file.tbl> <rows> <columns> <keys> <skew>
+**
+** writes a table with an id, a key column "K" and 'columns' more columns
+** cycling through int, float and string. */
+public final class TableGenerator {
+
+    private interface Cell {
+        String next(Random random, int row);
+    }
+
+    private final long seed;
+    private int rows = 1000;
+    private final List<String> header = new ArrayList<>();
+    private final List<Cell> cells = new ArrayList<>();
+
+    public TableGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public TableGenerator rows(int rows) {
+        this.rows = rows;
+        return this;
+    }
+
+    /* Adds an int column holding the row number. */
+    public TableGenerator serial(String name) {
+        return add(name + " int", (r, row) -> Integer.toString(row));
+    }
+
+    /* Adds an int column of keys in [0, keys). With 'skew' 0 every key is
+    ** equally likely; larger values follow a Zipf distribution with that
+    ** exponent, so a few keys hold most of the rows. */
+    public TableGenerator key(String name, int keys, double skew) {
+        double[] cdf = new double[keys];
+        double total = 0;
+        for (int i = 0; i < keys; i++) {
+            total += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = total;
+        }
+        double sum = total;
+        return add(name + " int", (r, row) -> {
+            int i = Arrays.binarySearch(cdf, r.nextDouble() * sum);
+            return Integer.toString(Math.min(keys - 1, (i < 0) ? -i - 1 : i));
+        });
+    }
+
+    /* Adds an int column uniform in [0, bound). */
+    public TableGenerator ints(String name, int bound) {
+        return add(name + " int", (r, row) -> Integer.toString(r.nextInt(bound)));
+    }
+
+    /* Adds a float column uniform in [0, 1000). */
+    public TableGenerator floats(String name) {
+        return add(name + " float", (r, row) -> Float.toString(r.nextInt(1000000) / 1000.0f));
+    }
+
+    /* Adds a string column of 'distinct' values. */
+    public TableGenerator strings(String name, int distinct) {
+        return add(name + " string", (r, row) -> "'v" + r.nextInt(distinct) + "'");
+    }
+
+    private TableGenerator add(String column, Cell cell) {
+        header.add(column);
+        cells.add(cell);
+        return this;
+    }
+
+    public void write(File file) throws IOException {
+        Random random = new Random(seed);
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            out.write(String.join(",", header));
+            out.write('\n');
+            for (int row = 0; row < rows; row++) {
+                for (int c = 0; c < cells.size(); c++) {
+                    if (c > 0) {
+                        out.write(',');
+                    }
+                    out.write(cells.get(c).next(random, row));
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    /* A table with 'columns' columns besides its id "Id" and key "K". */
+    public static TableGenerator standard(long seed, int rows, int columns, int keys, double skew) {
+        TableGenerator g = new TableGenerator(seed).rows(rows).serial("Id").key("K", keys, skew);
+        for (int i = 0; i < columns; i++) {
+            switch (i % 3) {
+                case 0:
+                    g.ints("I" + i, 1000000);
+                    break;
+                case 1:
+                    g.floats("F" + i);
+                    break;
+                default:
+                    g.strings("S" + i, 1000);
+            }
+        }
+        return g;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            System.err.println("usage: TableGenerator <file.tbl> <rows> <columns> <keys> <skew>");
+            System.exit(1);
+        }
+        standard(42, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), Double.parseDouble(args[4])).write(new File(args[0]));
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import db.Database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/* Helpers shared by the benchmarks for generating and loading tables. */
+final class Tables {
+
+    private Tables() {
+    }
+
+    static File tempDir() throws IOException {
+        return Files.createTempDirectory("dbbench").toFile();
+    }
+
+    /* Writes the table 'g' generates as 'name'.tbl in 'dir', returning the
+    ** name to load it by. */
+    static String write(File dir, String name, TableGenerator g) throws IOException {
+        g.write(new File(dir, name + ".tbl"));
+        return new File(dir, name).getPath();
+    }
+
+    /* Runs a statement, failing the benchmark if it reports an error. */
+    static String run(Database db, String query) {
+        String result = db.transact(query);
+        if (result.startsWith("ERROR")) {
+            throw new IllegalStateException(query + ": " + result);
+        }
+        return result;
+    }
+
+    static Database load(String... tables) {
+        Database db = new Database();
+        for (String t : tables) {
+            run(db, "load " + t);
+        }
+        return db;
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,324 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/* Hash aggregation for "group by". Each key cell becomes a long code: the int,
+** the float's bits or the string's dictionary code, with NOVALUE and NaN kept
+** apart from every value. Rows are numbered by group one key column at a
+** time, in an open-addressing table of longs, by combining the column's code
+** with the group number from the columns before it. Groups are numbered in
+** the order of their first rows, and each aggregate is then computed a column
+** at a time into arrays indexed by group.
+**
+** Inputs of at least PARALLEL_ROWS rows are split into ranges that are
+** aggregated on their own in parallel. The partial results are merged by
+** grouping the first rows of the partial groups, range by range, so the
+** groups come out in the same order as a serial aggregation. */
+class Aggregation {
+
+    static final int PARALLEL_ROWS = Morsels.PARALLEL_ROWS;
+
+    private static final long NOVALUE_CODE = 1L << 32;
+    private static final long NAN_CODE = 2L << 32;
+    /* Group numbers are shifted past a code and its marker bits. */
+    private static final int GROUP_SHIFT = 34;
+
+    private final Column[] keys;
+    private final String[] functions;
+    private final Column[] args;
+    private final String[] names;
+    private int[] first;
+    private int partitions;
+
+    /* Aggregates 'functions' of 'args', named 'names', grouped by 'keys'. An
+    ** argument is null for "count(*)". Throws IllegalArgumentException if a sum
+    ** or average is taken of strings. */
+    Aggregation(Column[] keys, String[] functions, Column[] args, String[] names) {
+        for (int a = 0; a < functions.length; a++) {
+            if ((functions[a].equals("sum") || functions[a].equals("avg"))
+                    && !isNumeric(args[a])) {
+                throw new IllegalArgumentException("Cannot " + functions[a] + " "
+                        + args[a].getColType() + " column " + args[a].getName());
+            }
+        }
+        this.keys = keys;
+        this.functions = functions;
+        this.args = args;
+        this.names = names;
+    }
+
+    /* Aggregates the given rows of the key and argument columns using up to
+    ** 'parallelism' threads, returning a column per function. */
+    Column[] run(int[] rows, int parallelism) {
+        State total;
+        partitions = (rows.length >= PARALLEL_ROWS) ? parallelism : 1;
+        if (partitions == 1) {
+            total = new Range(rows, 0, rows.length).call();
+        } else {
+            List<Range> ranges = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                ranges.add(new Range(rows, (int) ((long) rows.length * i / partitions),
+                        (int) ((long) rows.length * (i + 1) / partitions)));
+            }
+            List<State> partial = new ArrayList<>(partitions);
+            try {
+                for (Future<State> f : ForkJoinPool.commonPool().invokeAll(ranges)) {
+                    partial.add(f.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException("Interrupted while aggregating");
+            } catch (ExecutionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+            total = merge(partial);
+        }
+        first = total.first;
+        Column[] results = new Column[functions.length];
+        for (int a = 0; a < functions.length; a++) {
+            results[a] = result(total, a);
+        }
+        return results;
+    }
+
+    /* Returns the first row of each group, in group order. */
+    int[] firstRows() {
+        return first;
+    }
+
+    /* Returns the number of ranges the last run was split into. */
+    int partitions() {
+        return partitions;
+    }
+
+    private static boolean isNumeric(Column c) {
+        return c.getColType().equals("int") || c.getColType().equals("float");
+    }
+
+    /* Returns the code of a key cell; equal cells have equal codes. */
+    private static long code(Column c, int row) {
+        if (c.isNoValue(row)) {
+            return NOVALUE_CODE;
+        } else if (c.isNaN(row)) {
+            return NAN_CODE;
+        } else if (c instanceof StringColumn) {
+            return ((StringColumn) c).code(row) & 0xFFFFFFFFL;
+        } else if (c instanceof FloatColumn) {
+            //Adding zero turns -0.0 into 0.0, so both are one group
+            return Float.floatToIntBits(c.getFloat(row) + 0.0f) & 0xFFFFFFFFL;
+        }
+        return c.getInt(row) & 0xFFFFFFFFL;
+    }
+
+    /* Sets 'groups[i]' to the group number of 'rows[from + i]', returning the
+    ** number of groups. Without keys every row is in group 0. */
+    private int group(int[] rows, int from, int to, int[] groups) {
+        int count = 1;
+        for (Column k : keys) {
+            GroupMap map = new GroupMap(to - from);
+            for (int i = from; i < to; i++) {
+                long key = (long) groups[i - from] << GROUP_SHIFT | code(k, rows[i]);
+                groups[i - from] = map.add(key);
+            }
+            count = map.size;
+        }
+        return count;
+    }
+
+    /* Combines partial states, whose groups are numbered within their ranges. */
+    private State merge(List<State> partial) {
+        int n = 0;
+        for (State p : partial) {
+            n += p.groups;
+        }
+        int[] reps = new int[n];
+        int at = 0;
+        for (State p : partial) {
+            System.arraycopy(p.first, 0, reps, at, p.groups);
+            at += p.groups;
+        }
+        int[] groups = new int[n];
+        State total = new State(group(reps, 0, n, groups));
+        at = 0;
+        int next = 0;
+        for (State p : partial) {
+            for (int g = 0; g < p.groups; g++) {
+                int to = groups[at++];
+                if (to == next) {
+                    total.first[next++] = p.first[g];
+                }
+                for (int a = 0; a < functions.length; a++) {
+                    total.combine(a, to, p, g);
+                }
+            }
+        }
+        return total;
+    }
+
+    /* Returns the column of aggregate 'a' with a row per group. */
+    private Column result(State s, int a) {
+        Column arg = args[a];
+        String f = functions[a];
+        boolean ints = arg != null && arg.getColType().equals("int");
+        Column c = Column.create(names[a], f.equals("count") ? "int"
+                : f.equals("avg") ? "float" : arg.getColType());
+        c.ensureCapacity(s.groups);
+        for (int g = 0; g < s.groups; g++) {
+            if (f.equals("count")) {
+                c.appendInt((int) s.counts[a][g]);
+            } else if (s.nans[a][g]) {
+                c.appendNaN();
+            } else if (s.counts[a][g] == 0) {
+                c.appendNoValue();
+            } else if (f.equals("sum")) {
+                if (ints) {
+                    c.appendInt((int) s.ints[a][g]);
+                } else {
+                    c.appendFloat((float) s.floats[a][g]);
+                }
+            } else if (f.equals("avg")) {
+                c.appendFloat((float) ((ints ? s.ints[a][g] : s.floats[a][g]) / s.counts[a][g]));
+            } else {
+                int row = s.best[a][g];
+                if (ints) {
+                    c.appendInt(arg.getInt(row));
+                } else if (arg.getColType().equals("float")) {
+                    c.appendFloat(arg.getFloat(row));
+                } else {
+                    c.appendString(arg.getString(row));
+                }
+            }
+        }
+        return c;
+    }
+
+    /* Returns whether row 'row' of 'c' should replace row 'best' as the
+    ** minimum, or the maximum if 'max'. Ties keep the earlier row. */
+    private static boolean better(Column c, int row, int best, boolean max) {
+        int cmp;
+        if (c instanceof StringColumn) {
+            cmp = c.getString(row).compareTo(c.getString(best));
+        } else {
+            cmp = Double.compare(c.number(row), c.number(best));
+        }
+        return max ? cmp > 0 : cmp < 0;
+    }
+
+    /* The running aggregates of each group: how many rows each aggregate
+    ** counted, the sums of int and float arguments, whether a NaN was seen,
+    ** and the row holding the minimum or maximum so far. */
+    private final class State {
+        final int groups;
+        final int[] first;
+        final long[][] counts = new long[functions.length][];
+        final long[][] ints = new long[functions.length][];
+        final double[][] floats = new double[functions.length][];
+        final boolean[][] nans = new boolean[functions.length][];
+        final int[][] best = new int[functions.length][];
+
+        State(int groups) {
+            this.groups = groups;
+            this.first = new int[groups];
+            for (int a = 0; a < functions.length; a++) {
+                counts[a] = new long[groups];
+                nans[a] = new boolean[groups];
+                if (functions[a].equals("min") || functions[a].equals("max")) {
+                    best[a] = new int[groups];
+                    Arrays.fill(best[a], -1);
+                } else if (!functions[a].equals("count")) {
+                    if (args[a].getColType().equals("int")) {
+                        ints[a] = new long[groups];
+                    } else {
+                        floats[a] = new double[groups];
+                    }
+                }
+            }
+        }
+
+        /* Adds the rows of 'rows' from 'from' on, in groups 'groups', to aggregate 'a'. */
+        void accumulate(int a, int[] rows, int from, int[] groups) {
+            Column arg = args[a];
+            long[] n = counts[a];
+            if (arg == null) {
+                for (int g : groups) {
+                    n[g]++;
+                }
+                return;
+            }
+            String f = functions[a];
+            boolean[] nan = nans[a];
+            for (int i = 0; i < groups.length; i++) {
+                int row = rows[from + i];
+                int g = groups[i];
+                if (arg.isNoValue(row)) {
+                    continue;
+                }
+                n[g]++;
+                if (arg.isNaN(row)) {
+                    nan[g] = true;
+                } else if (ints[a] != null) {
+                    ints[a][g] += arg.getInt(row);
+                } else if (floats[a] != null) {
+                    floats[a][g] += arg.getFloat(row);
+                } else if (best[a] != null) {
+                    int b = best[a][g];
+                    if (b < 0 || better(arg, row, b, f.equals("max"))) {
+                        best[a][g] = row;
+                    }
+                }
+            }
+        }
+
+        /* Adds group 'g' of partial state 'p' to group 'to' of aggregate 'a'. */
+        void combine(int a, int to, State p, int g) {
+            counts[a][to] += p.counts[a][g];
+            nans[a][to] |= p.nans[a][g];
+            if (ints[a] != null) {
+                ints[a][to] += p.ints[a][g];
+            } else if (floats[a] != null) {
+                floats[a][to] += p.floats[a][g];
+            } else if (best[a] != null) {
+                int b = p.best[a][g];
+                if (b >= 0 && (best[a][to] < 0
+                        || better(args[a], b, best[a][to], functions[a].equals("max")))) {
+                    best[a][to] = b;
+                }
+            }
+        }
+    }
+
+    /* Aggregates the rows [from, to) of 'rows'. */
+    private final class Range implements Callable<State> {
+        private final int[] rows;
+        private final int from;
+        private final int to;
+
+        Range(int[] rows, int from, int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public State call() {
+            int[] groups = new int[to - from];
+            State s = new State(group(rows, from, to, groups));
+            int next = 0;
+            for (int i = 0; i < groups.length && next < s.groups; i++) {
+                if (groups[i] == next) {
+                    s.first[next++] = rows[from + i];
+                }
+            }
+            for (int a = 0; a < functions.length; a++) {
+                s.accumulate(a, rows, from, groups);
+            }
+            return s;
+        }
+    }
+}
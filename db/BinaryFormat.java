@@ -0,0 +1,361 @@
+package db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/* Binary columnar table files (.tbc). The file starts with a header holding
+** the schema and row count, followed by one contiguous block per column:
+**
+**   magic, version, column count, row count
+**   per column: name, type
+**   per column: NOVALUE bitmap, NaN bitmap, then the values
+**
+** Int and float values are stored as raw 4-byte arrays followed by the
+** column's zone map, so it need not be rebuilt on load. String columns store
+** their dictionary, as length prefixed UTF-8 values, followed by the raw array
+** of codes. Older versions are still read: version 2 files have no zone maps,
+** and version 1 files also hold each string in full.
+** All numbers are big-endian. Files are loaded through FileChannel.map, so
+** numeric blocks are copied straight from the mapping into the column arrays
+** without any parsing; files over 2 GiB are mapped a segment at a time. Read
+** with a BufferPool, the values and codes are not copied at all: each column
+** reads them from the file a page at a time, and only the bitmaps, zone maps
+** and dictionaries are kept in memory.
+**
+** A table is written to a temporary file of its own that is then renamed over
+** the old one, so tables still paged from the old file keep reading it. */
+class BinaryFormat {
+
+    static final String EXTENSION = ".tbc";
+
+    private static final int MAGIC = 0x54424331;
+    private static final int VERSION = 3;
+
+    private BinaryFormat() {
+    }
+
+    static void write(Table t, File file) throws IOException {
+        //Each writer gets its own temporary file, next to the table so the
+        //rename stays on one file system
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp").toFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp), 1 << 16))) {
+            int rows = t.size();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(t.getNumCols());
+            out.writeInt(rows);
+            for (String name : t.getColNames()) {
+                writeString(out, name);
+                writeString(out, t.getColumn(name).getColType());
+            }
+            for (String name : t.getColNames()) {
+                Column c = t.getColumn(name);
+                writeBits(out, c.getNoValues());
+                writeBits(out, c.getNaNs());
+                if (c instanceof IntColumn) {
+                    for (int i = 0; i < rows; i++) {
+                        out.writeInt(c.getInt(i));
+                    }
+                    c.getZones().write(out);
+                } else if (c instanceof FloatColumn) {
+                    for (int i = 0; i < rows; i++) {
+                        out.writeFloat(c.getFloat(i));
+                    }
+                    c.getZones().write(out);
+                } else {
+                    StringColumn sc = (StringColumn) c;
+                    StringDictionary dict = sc.getDictionary();
+                    out.writeInt(dict.size());
+                    for (int i = 0; i < dict.size(); i++) {
+                        writeString(out, dict.decode(i));
+                    }
+                    for (int i = 0; i < rows; i++) {
+                        out.writeInt(sc.code(i));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Reads a table, throwing IllegalArgumentException if the file is not a
+    ** valid table file. */
+    static Table read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /* Reads a table whose values are paged through 'pool', or held on the heap
+    ** if 'pool' is null. The strings of version 1 files are always held on the
+    ** heap. A paged table keeps the file open until it is closed. */
+    static Table read(File file, BufferPool pool) throws IOException {
+        FileChannel pages = (pool == null) ? null
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            Table t = read(file, pool, pages);
+            if (pages != null) {
+                t.setStorage(pages);
+            }
+            return t;
+        } catch (IOException | RuntimeException e) {
+            if (pages != null) {
+                pages.close();
+            }
+            throw e;
+        }
+    }
+
+    private static Table read(File file, BufferPool pool, FileChannel pages) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Input in = new Input(ch);
+            int version = (in.getInt() == MAGIC) ? in.getInt() : -1;
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("Not a table file: " + file);
+            }
+            int numCols = in.getInt();
+            int rows = in.getInt();
+            String[] names = new String[numCols];
+            String[] types = new String[numCols];
+            for (int i = 0; i < numCols; i++) {
+                names[i] = readString(in);
+                types[i] = readString(in);
+            }
+
+            int blocks = (rows + ZoneMap.BLOCK - 1) / ZoneMap.BLOCK;
+            Column[] cols = new Column[numCols];
+            for (int i = 0; i < numCols; i++) {
+                BitSet noValues = readBits(in);
+                BitSet nans = readBits(in);
+                ZoneMap zones = null;
+                cols[i] = Column.create(names[i], types[i]);
+                if (pool != null && cols[i] instanceof IntColumn) {
+                    ((IntColumn) cols[i]).setPages(paged(pool, pages, in, rows));
+                    zones = (version >= 3) ? readZones(in) : null;
+                } else if (pool != null && cols[i] instanceof FloatColumn) {
+                    ((FloatColumn) cols[i]).setPages(paged(pool, pages, in, rows));
+                    zones = (version >= 3) ? readZones(in) : null;
+                } else if (cols[i] instanceof IntColumn) {
+                    int[] data = new int[Math.max(rows, 1)];
+                    in.getInts(data, rows);
+                    ((IntColumn) cols[i]).setData(data, rows);
+                    zones = (version >= 3) ? readZones(in) : null;
+                } else if (cols[i] instanceof FloatColumn) {
+                    float[] data = new float[Math.max(rows, 1)];
+                    in.getFloats(data, rows);
+                    ((FloatColumn) cols[i]).setData(data, rows);
+                    zones = (version >= 3) ? readZones(in) : null;
+                } else if (version == 1) {
+                    for (int r = 0; r < rows; r++) {
+                        cols[i].appendString(readString(in));
+                    }
+                } else {
+                    int entries = in.getInt();
+                    StringDictionary dict = new StringDictionary();
+                    for (int e = 0; e < entries; e++) {
+                        dict.encode(readString(in));
+                    }
+                    if (pool != null) {
+                        PagedArray codes = paged(pool, pages, in, rows);
+                        checkCodes(codes, entries, file);
+                        ((StringColumn) cols[i]).setPages(codes, dict);
+                    } else {
+                        int[] codes = new int[Math.max(rows, 1)];
+                        in.getInts(codes, rows);
+                        for (int r = 0; r < rows; r++) {
+                            if (codes[r] < -1 || codes[r] >= entries) {
+                                throw new IllegalArgumentException("Bad string code in " + file);
+                            }
+                        }
+                        ((StringColumn) cols[i]).setData(codes, dict, rows);
+                    }
+                }
+                cols[i].setMarkers(noValues, nans);
+                if (cols[i].getZones() != null) {
+                    cols[i].setZones((zones != null && zones.blocks() == blocks) ? zones : null);
+                }
+            }
+            return new Table(cols);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated table file: " + file);
+        }
+    }
+
+    /* Returns the 'rows' values at the position of 'in' as a paged array,
+    ** moving past them. */
+    private static PagedArray paged(BufferPool pool, FileChannel pages, Input in, int rows)
+            throws IOException {
+        PagedArray a = new PagedArray(pool, pages, in.position(), rows);
+        in.skip(rows * 4L);
+        return a;
+    }
+
+    /* Checks the codes of a paged string column a page at a time. */
+    private static void checkCodes(PagedArray codes, int entries, File file) {
+        int[] page = new int[PagedArray.PAGE_ROWS];
+        for (int from = 0; from < codes.size(); from += page.length) {
+            int to = Math.min(codes.size(), from + page.length);
+            codes.copyInts(from, to, page, 0);
+            for (int r = 0; r < to - from; r++) {
+                if (page[r] < -1 || page[r] >= entries) {
+                    throw new IllegalArgumentException("Bad string code in " + file);
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(Input in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return new String(in.getBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        out.writeInt(words.length);
+        for (long w : words) {
+            out.writeLong(w);
+        }
+    }
+
+    private static BitSet readBits(Input in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / 8) {
+            throw new BufferUnderflowException();
+        }
+        long[] words = new long[length];
+        ByteBuffer.wrap(in.getBytes(length * 8)).asLongBuffer().get(words);
+        return BitSet.valueOf(words);
+    }
+
+    /* Reads a zone map, which is small enough to read whole. */
+    private static ZoneMap readZones(Input in) throws IOException {
+        int blocks = in.getInt();
+        if (blocks < 0 || blocks > in.remaining() / 28) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + blocks * 28);
+        buf.putInt(blocks).put(in.getBytes(blocks * 28)).flip();
+        return ZoneMap.read(buf);
+    }
+
+    /* Reads a file front to back through a memory mapping of at most
+    ** SEGMENT bytes, as a mapping is limited to 2 GiB. When a read runs past
+    ** the end of the mapping the file is mapped again from the current
+    ** position, so files of any size can be read. Reading past the end
+    ** throws BufferUnderflowException. */
+    private static final class Input {
+        private static final long SEGMENT = Integer.MAX_VALUE;
+
+        private final FileChannel ch;
+        private final long size;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+        /* The file position of the start of the mapping. */
+        private long start;
+
+        Input(FileChannel ch) throws IOException {
+            this.ch = ch;
+            this.size = ch.size();
+        }
+
+        long position() {
+            return start + window.position();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        /* Makes at least 'n' bytes readable, mapping the file again from the
+        ** current position if the mapping holds fewer. */
+        private void fill(int n) throws IOException {
+            if (window.remaining() >= n) {
+                return;
+            } else if (remaining() < n) {
+                throw new BufferUnderflowException();
+            }
+            start = position();
+            window = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start));
+        }
+
+        int getInt() throws IOException {
+            fill(4);
+            return window.getInt();
+        }
+
+        void skip(long n) {
+            if (n > remaining()) {
+                throw new BufferUnderflowException();
+            } else if (n <= window.remaining()) {
+                window.position(window.position() + (int) n);
+            } else {
+                start = position() + n;
+                window = ByteBuffer.allocate(0);
+            }
+        }
+
+        byte[] getBytes(int n) throws IOException {
+            if (n > remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] bytes = new byte[n];
+            for (int done = 0; done < n; ) {
+                fill(1);
+                int k = Math.min(n - done, window.remaining());
+                window.get(bytes, done, k);
+                done += k;
+            }
+            return bytes;
+        }
+
+        /* Reads 'n' big-endian ints into 'dest'. */
+        void getInts(int[] dest, int n) throws IOException {
+            if (n * 4L > remaining()) {
+                throw new BufferUnderflowException();
+            }
+            for (int done = 0; done < n; ) {
+                fill(4);
+                int k = Math.min(n - done, window.remaining() / 4);
+                window.asIntBuffer().get(dest, done, k);
+                window.position(window.position() + k * 4);
+                done += k;
+            }
+        }
+
+        void getFloats(float[] dest, int n) throws IOException {
+            if (n * 4L > remaining()) {
+                throw new BufferUnderflowException();
+            }
+            for (int done = 0; done < n; ) {
+                fill(4);
+                int k = Math.min(n - done, window.remaining() / 4);
+                window.asFloatBuffer().get(dest, done, k);
+                window.position(window.position() + k * 4);
+                done += k;
+            }
+        }
+    }
+}
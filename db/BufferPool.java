@@ -0,0 +1,168 @@
+package db;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/* A bounded cache of the pages of stored tables. The pool holds a fixed number
+** of frames, each the size of one page, which are only allocated when first
+** used. A page is pinned while it is being read from disk or copied out, and
+** pinned frames are never evicted; the others are replaced with the clock
+** algorithm, which passes over frames used since the hand last went by.
+**
+** Each frame has a StampedLock that is held for writing while a page is read
+** into it, so a column can read a value from a frame it found before without
+** pinning it, by checking that the frame still holds the same page. */
+class BufferPool {
+
+    static final class Frame {
+        final StampedLock lock = new StampedLock();
+        ByteBuffer data;
+        /* The page held by the frame, changed only under the write lock. */
+        PagedArray owner;
+        int page;
+        /* Guarded by the pool. */
+        private int pins;
+        /* Set on every use and cleared by the clock hand. */
+        volatile boolean used;
+    }
+
+    private final Frame[] frames;
+    private final Map<Long, Frame> pageTable = new HashMap<>();
+    private int hand;
+    private int resident;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BufferPool(int pages) {
+        frames = new Frame[Math.max(1, pages)];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame();
+        }
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+
+    private static Long key(PagedArray a, int page) {
+        return ((long) a.id << 32) | page;
+    }
+
+    /* Returns the frame holding page 'page' of 'a', reading it in if needed,
+    ** pinned until it is passed to unpin. Throws IllegalStateException if
+    ** every frame is pinned. */
+    Frame pin(PagedArray a, int page) {
+        Long key = key(a, page);
+        Frame f;
+        long stamp = 0;
+        synchronized (this) {
+            f = pageTable.get(key);
+            if (f != null) {
+                f.pins++;
+                hits.increment();
+            } else {
+                f = victim();
+                if (f.owner != null) {
+                    pageTable.remove(key(f.owner, f.page));
+                    evictions.increment();
+                } else {
+                    resident++;
+                }
+                //The frame is unpinned, so nobody holds its lock
+                stamp = f.lock.writeLock();
+                f.owner = a;
+                f.page = page;
+                f.pins = 1;
+                pageTable.put(key, f);
+                misses.increment();
+            }
+            f.used = true;
+        }
+        if (stamp != 0) {
+            load(f, key, stamp);
+        } else {
+            //Wait for a read in progress on another thread
+            long read = f.lock.readLock();
+            boolean loaded = f.owner == a && f.page == page;
+            f.lock.unlockRead(read);
+            if (!loaded) {
+                unpin(f);
+                throw new UncheckedIOException(new IOException("Could not read page " + page));
+            }
+        }
+        return f;
+    }
+
+    private void load(Frame f, Long key, long stamp) {
+        try {
+            if (f.data == null) {
+                f.data = ByteBuffer.allocate(PagedArray.PAGE_SIZE);
+            }
+            f.owner.read(f.page, f.data);
+        } catch (IOException e) {
+            synchronized (this) {
+                pageTable.remove(key);
+                f.owner = null;
+                f.pins--;
+                resident--;
+            }
+            throw new UncheckedIOException(e);
+        } finally {
+            f.lock.unlockWrite(stamp);
+        }
+    }
+
+    synchronized void unpin(Frame f) {
+        f.pins--;
+    }
+
+    /* Returns an unpinned frame to reuse, moving the clock hand past it. */
+    private Frame victim() {
+        for (int i = 0; i < 2 * frames.length; i++) {
+            Frame f = frames[hand];
+            hand = (hand + 1) % frames.length;
+            if (f.pins == 0) {
+                if (f.owner == null || !f.used) {
+                    return f;
+                }
+                f.used = false;
+            }
+        }
+        throw new IllegalStateException("ERROR: Every page in the buffer pool is pinned.");
+    }
+
+    /* Counts a read of a page the caller found in a frame without pinning it. */
+    void hit() {
+        hits.increment();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    synchronized int getResident() {
+        return resident;
+    }
+
+    @Override
+    public String toString() {
+        return "pages " + getResident() + "/" + capacity() + " of " + PagedArray.PAGE_SIZE
+                + " bytes, hits " + getHits() + ", misses " + getMisses()
+                + ", evictions " + getEvictions();
+    }
+}
@@ -1,18 +1,42 @@
 package db;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
 
-public class Column<T extends Comparable<T>> {
+/* A named, typed column of a table. Cells are kept in primitive storage by the
+** int, float and string implementations; the NOVALUE and NaN markers are kept
+** in bitmaps next to the values instead of as strings inside the column.
+** Numeric columns also keep a ZoneMap of their blocks up to date. */
+public abstract class Column {
+
+    static final String NOVALUE = "NOVALUE";
+    static final String NAN = "NaN";
 
     private String name;
-    private List<T> col;
     private String type;
+    private BitSet noValues;
+    private BitSet nans;
+    private ZoneMap zones;
+    protected int size;
 
-    public Column(String name, String type) {
+    Column(String name, String type) {
         this.name = name;
-        this.col = new ArrayList<T>();
         this.type = type;
+        this.noValues = new BitSet();
+        this.nans = new BitSet();
+        if (type.equals("int") || type.equals("float")) {
+            this.zones = new ZoneMap();
+        }
+    }
+
+    /* Returns an empty column whose storage matches the given type. */
+    static Column create(String name, String type) {
+        if (type.equals("int")) {
+            return new IntColumn(name, type);
+        } else if (type.equals("float")) {
+            return new FloatColumn(name, type);
+        } else {
+            return new StringColumn(name, type);
+        }
     }
 
     String getColType() {
@@ -27,50 +51,265 @@ public class Column<T extends Comparable<T>> {
         return name + " " + type;
     }
 
-    String addLast(T item) {
-        Comparable parseItem = item;
-
-        if (type.equals("int") && !item.equals("NOVALUE") && !item.equals("NaN")) {
-            try {
-                parseItem = Integer.valueOf((String) item);
-            } catch (ClassCastException e) {
-                return "ERROR: Wrong item type in column.";
-            } catch (NumberFormatException e) {
-                return "ERROR: Malformed table";
-            }
-        } else if (type.equals("float") && !item.equals("NOVALUE") && !item.equals("NaN")) {
-            try {
-                parseItem = Float.parseFloat((String) item);
-            } catch (ClassCastException e) {
-                return "ERROR: Wrong item type in column.";
-            } catch (NumberFormatException e) {
-                return "ERROR: Malformed table";
-            }
-        } else if (type.equals("string") && !item.equals("NOVALUE") && !item.equals("NaN")) {
-            String x = (String) parseItem;
-            if (!x.contains("\'")) {
-                return "ERROR: Wrong item type in column.";
+    String addLast(String item) {
+        ensureCapacity(size + 1);
+        if (item.equals(NOVALUE)) {
+            setDefault(size);
+            noValues.set(size);
+        } else if (item.equals(NAN)) {
+            setDefault(size);
+            nans.set(size);
+        } else {
+            String result = set(size, item);
+            if (result.contains("ERROR:")) {
+                return result;
             }
         }
-        col.add((T) parseItem);
+        size++;
+        appended();
         return "";
     }
 
-    T remove(int row) {
-        return col.remove(row);
+    /* Appends a cell given as an Integer or Float, as a string in the form
+    ** addLast takes, or as null for NOVALUE. Returns an error string on failure. */
+    String appendValue(Object item) {
+        if (item == null) {
+            appendNoValue();
+            return "";
+        } else if (item instanceof String) {
+            return addLast((String) item);
+        } else if (item instanceof Number) {
+            return appendNumber((Number) item);
+        }
+        return "ERROR: Wrong item type in column.";
+    }
+
+    String appendNumber(Number item) {
+        return "ERROR: Wrong item type in column.";
+    }
+
+    void appendNoValue() {
+        ensureCapacity(size + 1);
+        setDefault(size);
+        noValues.set(size);
+        size++;
+        appended();
+    }
+
+    void appendNaN() {
+        ensureCapacity(size + 1);
+        setDefault(size);
+        nans.set(size);
+        size++;
+        appended();
+    }
+
+    /* Updates the zone map for the row just appended. */
+    void appended() {
+        if (zones != null) {
+            zones.update(this, size - 1);
+        }
+    }
+
+    /* Updates the zone map after the rows from 'row' on changed. */
+    private void changed(int row) {
+        if (zones != null) {
+            zones.rebuild(this, row);
+        }
+    }
+
+    /* Returns the zone map of a numeric column, or null. */
+    ZoneMap getZones() {
+        return zones;
+    }
+
+    /* Replaces the zone map of a numeric column with one read from a stored
+    ** table, or rebuilds it from the cells if 'zones' is null. */
+    void setZones(ZoneMap zones) {
+        if (zones != null) {
+            this.zones = zones;
+        } else {
+            changed(0);
+        }
+    }
+
+    void appendInt(int item) {
+        throw new ClassCastException(type + " column " + name + " does not hold ints");
+    }
+
+    void appendFloat(float item) {
+        throw new ClassCastException(type + " column " + name + " does not hold floats");
+    }
+
+    void appendString(String item) {
+        throw new ClassCastException(type + " column " + name + " does not hold strings");
+    }
+
+    /* Appends every cell of 'other', which must have the same type. */
+    void append(Column other) {
+        ensureCapacity(size + other.size);
+        appendData(other);
+        for (int i = other.noValues.nextSetBit(0); i >= 0; i = other.noValues.nextSetBit(i + 1)) {
+            noValues.set(size + i);
+        }
+        for (int i = other.nans.nextSetBit(0); i >= 0; i = other.nans.nextSetBit(i + 1)) {
+            nans.set(size + i);
+        }
+        int first = size;
+        size += other.size;
+        changed(first);
+    }
+
+    /* Drops every row from 'newSize' on. */
+    void truncate(int newSize) {
+        if (newSize < size) {
+            noValues.clear(newSize, size);
+            nans.clear(newSize, size);
+            size = newSize;
+            changed(newSize);
+        }
     }
 
     int size() {
-        return col.size();
+        return size;
     }
 
-    @Override
-    public String toString() {
-        return col.toString();
+    /* Returns a new column holding the given rows, in order. */
+    Column gather(int[] rows) {
+        Column c = gatherData(rows);
+        boolean marked = hasMarkers();
+        for (int i = 0; marked && i < rows.length; i++) {
+            if (noValues.get(rows[i])) {
+                c.noValues.set(i);
+            } else if (nans.get(rows[i])) {
+                c.nans.set(i);
+            }
+        }
+        c.size = rows.length;
+        c.changed(0);
+        return c;
+    }
+
+    /* Returns an independent column holding the same cells. */
+    Column copy() {
+        Column c = copyData();
+        c.noValues = (BitSet) noValues.clone();
+        c.nans = (BitSet) nans.clone();
+        c.size = size;
+        c.zones = (zones == null) ? null : zones.copy();
+        return c;
     }
 
-    T getItem(int row) {
-        return col.get(row);
+    BitSet getNoValues() {
+        return noValues;
+    }
+
+    BitSet getNaNs() {
+        return nans;
+    }
+
+    /* Replaces the NOVALUE and NaN bitmaps, for columns built from stored data. */
+    void setMarkers(BitSet noValues, BitSet nans) {
+        this.noValues = noValues;
+        this.nans = nans;
+    }
+
+    /* Returns whether any cell is NOVALUE or NaN. */
+    boolean hasMarkers() {
+        return !noValues.isEmpty() || !nans.isEmpty();
+    }
+
+    /* Sets 'states[i]' to the Evaluator state of row 'rows[i]' for the first 'n' rows. */
+    void states(int[] rows, int n, byte[] states) {
+        for (int i = 0; i < n; i++) {
+            int row = rows[i];
+            states[i] = (byte) (noValues.get(row) ? Evaluator.NOVALUE
+                    : nans.get(row) ? Evaluator.NAN : Evaluator.VALUE);
+        }
+    }
+
+    boolean isNoValue(int row) {
+        return noValues.get(row);
+    }
+
+    boolean isNaN(int row) {
+        return nans.get(row);
+    }
+
+    /* Returns the cell as an Integer, Float or String, or the NOVALUE/NaN marker. */
+    Comparable<?> getItem(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of bounds for size " + size);
+        }
+        if (noValues.get(row)) {
+            return NOVALUE;
+        } else if (nans.get(row)) {
+            return NAN;
+        }
+        return value(row);
+    }
+
+    /* Renders the cell the way it appears in printed and stored tables. */
+    String itemString(int row) {
+        if (noValues.get(row)) {
+            return NOVALUE;
+        } else if (nans.get(row)) {
+            return NAN;
+        }
+        return format(row);
+    }
+
+    int getInt(int row) {
+        throw new ClassCastException(type + " column " + name + " does not hold ints");
+    }
+
+    float getFloat(int row) {
+        throw new ClassCastException(type + " column " + name + " does not hold numbers");
+    }
+
+    /* Returns a numeric cell as a double, which holds ints and floats exactly. */
+    double number(int row) {
+        throw new ClassCastException(type + " column " + name + " does not hold numbers");
+    }
+
+    String getString(int row) {
+        throw new ClassCastException(type + " column " + name + " does not hold strings");
+    }
+
+    /* Parses 'item' into row 'row', returning an error string on failure. */
+    abstract String set(int row, String item);
+
+    abstract void setDefault(int row);
+
+    abstract Comparable<?> value(int row);
+
+    abstract String format(int row);
+
+    abstract void ensureCapacity(int capacity);
+
+    /* Copies the values of 'other' to the end of this column's storage. */
+    abstract void appendData(Column other);
+
+    /* Returns a column of the same name and type with a copy of the value array. */
+    abstract Column copyData();
+
+    /* Returns a column of the same name and type holding the values of 'rows'. */
+    abstract Column gatherData(int[] rows);
+
+    static int grow(int length, int capacity) {
+        return Math.max(capacity, Math.max(8, length + (length >> 1)));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(getItem(i));
+        }
+        return s.append("]").toString();
     }
 
 }
@@ -0,0 +1,398 @@
+package db;
+
+import java.util.Arrays;
+
+/* A compiled WHERE condition comparing two expressions, such as
+** "Wins + Ties >= 10" or "Mascot == 'Oski'". Rows where either side is
+** NOVALUE never match, and NaN compares greater than every other value and
+** equal to itself. Numbers of different types are compared as floats. A
+** comparison between a numeric column and a literal skips the blocks that the
+** column's zone map rules out.
+**
+** Conditions filter a batch of rows at a time, narrowing a selection vector.
+** Numeric conditions evaluate both sides into ValueVectors and compare them
+** in a loop specialized for the operator, which appends each row and advances
+** the output by the comparison's result instead of branching on it. */
+abstract class Condition {
+
+    private static final int LT = 0, GT = 1, LE = 2, GE = 3, EQ = 4, NE = 5;
+    /* How a batch is compared: as ints, as floats, or a row at a time. */
+    private static final int INTS = 0, FLOATS = 1, ROWS = 2;
+
+    final Evaluator left;
+    final Evaluator right;
+    private final int op;
+    private int kind = ROWS;
+    private ValueVector lv;
+    private ValueVector rv;
+
+    /* The time spent and the rows read and kept by selectAll, summed over
+    ** every call. */
+    long nanos;
+    long rowsIn;
+    long rowsOut;
+
+    /* The zone map of a column compared with the literal 'bound', or null. */
+    private ZoneMap zones;
+    private String zoneOp;
+    private double bound;
+    private boolean asFloat;
+
+    Condition(Evaluator left, Evaluator right, int op) {
+        this.left = left;
+        this.right = right;
+        this.op = op;
+    }
+
+    /* Compiles the comparison 'left op right', resolving columns against 'tables'
+    ** in order. Throws IllegalArgumentException if it is badly typed. */
+    static Condition compile(Expression left, String operator, Expression right,
+                             Table... tables) {
+        Condition c = compileTyped(left, operator, right, tables);
+        if (c.left.source() != null) {
+            c.prune(c.left, operator, right);
+        } else {
+            c.prune(c.right, flip(operator), left);
+        }
+        return c;
+    }
+
+    private static Condition compileTyped(Expression left, String operator, Expression right,
+                                          Table... tables) {
+        Evaluator l = left.compile(tables);
+        Evaluator r = right.compile(tables);
+        int op = opCode(operator);
+        boolean lString = l.type.equals("string");
+        if (lString != r.type.equals("string")) {
+            throw new IllegalArgumentException("Cannot compare " + l.type + " with " + r.type);
+        } else if (lString) {
+            Condition codes = (op == EQ || op == NE) ? codeEquality(l, r, left, right, op) : null;
+            if (codes != null) {
+                return codes;
+            }
+            return new Condition(l, r, op) {
+                int compare(int row) {
+                    return left.stringAt(row).compareTo(right.stringAt(row));
+                }
+            };
+        } else if (l.type.equals("int") && r.type.equals("int")) {
+            Condition c = new Condition(l, r, op) {
+                int compare(int row) {
+                    return Integer.compare(left.intAt(row), right.intAt(row));
+                }
+            };
+            c.kind = INTS;
+            return c;
+        }
+        Condition c = new Condition(l, r, op) {
+            int compare(int row) {
+                return Float.compare(left.floatAt(row), right.floatAt(row));
+            }
+        };
+        c.kind = FLOATS;
+        return c;
+    }
+
+    /* Returns 'op' with its sides swapped, so "a op b" is "b flip(op) a". */
+    static String flip(String op) {
+        switch (op) {
+            case "<":
+                return ">";
+            case ">":
+                return "<";
+            case "<=":
+                return ">=";
+            case ">=":
+                return "<=";
+            default:
+                return op;
+        }
+    }
+
+    /* Uses the zone map of the column read by 'col' when the other side of the
+    ** comparison is a numeric literal, where "col op literal" is the condition. */
+    private void prune(Evaluator col, String op, Expression literal) {
+        Column c = col.source();
+        Comparable<?> value = literal.literalValue();
+        if (c == null || c.getZones() == null || !(value instanceof Number)) {
+            return;
+        }
+        zones = c.getZones();
+        zoneOp = op;
+        bound = ((Number) value).doubleValue();
+        asFloat = !(c instanceof IntColumn && value instanceof Integer);
+    }
+
+    /* Returns whether the filter skips blocks using a zone map. */
+    boolean usesZoneMap() {
+        return zones != null;
+    }
+
+    /* Returns a condition that tests equality on dictionary codes instead of
+    ** strings, when a string column is compared with a literal or with a column
+    ** sharing its dictionary. Returns null if neither applies. */
+    private static Condition codeEquality(Evaluator l, Evaluator r, Expression left,
+                                          Expression right, int op) {
+        if (!(l.source() instanceof StringColumn)) {
+            Evaluator swap = l;
+            l = r;
+            r = swap;
+            Expression e = left;
+            left = right;
+            right = e;
+        }
+        if (!(l.source() instanceof StringColumn)) {
+            return null;
+        }
+        StringColumn a = (StringColumn) l.source();
+        if (right.literalValue() != null) {
+            int code = a.getDictionary().lookup((String) right.literalValue());
+            return new Condition(l, r, op) {
+                int compare(int row) {
+                    return (a.code(row) == code) ? 0 : 1;
+                }
+            };
+        } else if (r.source() instanceof StringColumn
+                && ((StringColumn) r.source()).getDictionary().sameCodes(a.getDictionary())) {
+            StringColumn b = (StringColumn) r.source();
+            return new Condition(l, r, op) {
+                int compare(int row) {
+                    return (a.code(row) == b.code(row)) ? 0 : 1;
+                }
+            };
+        }
+        return null;
+    }
+
+    private static int opCode(String op) {
+        switch (op) {
+            case "<":
+                return LT;
+            case ">":
+                return GT;
+            case "<=":
+                return LE;
+            case ">=":
+                return GE;
+            case "==":
+                return EQ;
+            default:
+                return NE;
+        }
+    }
+
+    /* Compares the two sides of a row whose states are both VALUE. */
+    abstract int compare(int row);
+
+    boolean test(int row) {
+        int a = left.state(row);
+        int b = right.state(row);
+        if (a == Evaluator.NOVALUE || b == Evaluator.NOVALUE) {
+            return false;
+        } else if (a == Evaluator.NAN || b == Evaluator.NAN) {
+            return matches((a == b) ? 0 : (a == Evaluator.NAN ? 1 : -1));
+        }
+        return matches(compare(row));
+    }
+
+    /* Returns whether a comparison result satisfies the operator. */
+    private boolean matches(int cmp) {
+        switch (op) {
+            case LT:
+                return cmp < 0;
+            case GT:
+                return cmp > 0;
+            case LE:
+                return cmp <= 0;
+            case GE:
+                return cmp >= 0;
+            case EQ:
+                return cmp == 0;
+            default:
+                return cmp != 0;
+        }
+    }
+
+    /* Returns the rows in [from, to) that satisfy every condition, in order.
+    ** 'from' must start a zone map block. Rows are filtered a batch of
+    ** ValueVector.SIZE at a time; each condition narrows the batch's selection
+    ** vector in turn, and a batch is dropped once a zone map rules it out or no
+    ** rows are left. If 'timed', each condition records its time and rows in
+    ** 'nanos', 'rowsIn' and 'rowsOut'. */
+    static int[] selectAll(Condition[] conds, int from, int to, boolean timed) {
+        int rows = to - from;
+        int[] result = new int[Math.min(rows, ValueVector.SIZE)];
+        int size = 0;
+        int[] batch = new int[ValueVector.SIZE];
+        int[] next = new int[ValueVector.SIZE];
+        for (int start = from; start < to; start += ValueVector.SIZE) {
+            int n = Math.min(ValueVector.SIZE, to - start);
+            for (int i = 0; i < n; i++) {
+                batch[i] = start + i;
+            }
+            int block = start >> ZoneMap.SHIFT;
+            for (int j = 0; j < conds.length && n > 0; j++) {
+                Condition c = conds[j];
+                long began = timed ? System.nanoTime() : 0;
+                int kept = c.mayMatch(block) ? c.select(batch, n, next) : 0;
+                if (timed) {
+                    c.nanos += System.nanoTime() - began;
+                    c.rowsIn += n;
+                    c.rowsOut += kept;
+                }
+                int[] swap = batch;
+                batch = next;
+                next = swap;
+                n = kept;
+            }
+            if (size + n > result.length) {
+                result = Arrays.copyOf(result, Math.min(rows, Math.max(size + n,
+                        result.length + (result.length >> 1))));
+            }
+            System.arraycopy(batch, 0, result, size, n);
+            size += n;
+        }
+        return (size == result.length) ? result : Arrays.copyOf(result, size);
+    }
+
+    /* Returns whether the zone map leaves any row of block 'block' that can match. */
+    private boolean mayMatch(int block) {
+        return zones == null || zones.mayMatch(block, zoneOp, bound, asFloat);
+    }
+
+    /* Writes the rows of the selection vector 'rows[0..n)' that satisfy the
+    ** condition to 'out', returning how many there are. */
+    int select(int[] rows, int n, int[] out) {
+        int k = 0;
+        if (kind == ROWS) {
+            for (int i = 0; i < n; i++) {
+                if (test(rows[i])) {
+                    out[k++] = rows[i];
+                }
+            }
+            return k;
+        }
+        if (lv == null) {
+            lv = new ValueVector();
+            rv = new ValueVector();
+        }
+        left.evaluate(rows, n, lv);
+        right.evaluate(rows, n, rv);
+        if (kind == FLOATS) {
+            if (left.type.equals("int")) {
+                lv.toFloats(n);
+            }
+            if (right.type.equals("int")) {
+                rv.toFloats(n);
+            }
+        }
+        if (!lv.clean || !rv.clean) {
+            for (int i = 0; i < n; i++) {
+                int a = lv.state(i);
+                int b = rv.state(i);
+                if (a == Evaluator.NOVALUE || b == Evaluator.NOVALUE) {
+                    continue;
+                }
+                int cmp;
+                if (a == Evaluator.NAN || b == Evaluator.NAN) {
+                    cmp = (a == b) ? 0 : (a == Evaluator.NAN ? 1 : -1);
+                } else if (kind == INTS) {
+                    cmp = Integer.compare(lv.ints[i], rv.ints[i]);
+                } else {
+                    cmp = Float.compare(lv.floats[i], rv.floats[i]);
+                }
+                if (matches(cmp)) {
+                    out[k++] = rows[i];
+                }
+            }
+            return k;
+        }
+        return (kind == INTS) ? selectInts(lv.ints, rv.ints, rows, n, out)
+                : selectFloats(lv.floats, rv.floats, rows, n, out);
+    }
+
+    private int selectInts(int[] a, int[] b, int[] rows, int n, int[] out) {
+        int k = 0;
+        switch (op) {
+            case LT:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (a[i] < b[i]) ? 1 : 0;
+                }
+                break;
+            case GT:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (a[i] > b[i]) ? 1 : 0;
+                }
+                break;
+            case LE:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (a[i] <= b[i]) ? 1 : 0;
+                }
+                break;
+            case GE:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (a[i] >= b[i]) ? 1 : 0;
+                }
+                break;
+            case EQ:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (a[i] == b[i]) ? 1 : 0;
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (a[i] != b[i]) ? 1 : 0;
+                }
+        }
+        return k;
+    }
+
+    /* Compares with Float.compare, like the row path, so -0.0 sorts below 0.0. */
+    private int selectFloats(float[] a, float[] b, int[] rows, int n, int[] out) {
+        int k = 0;
+        switch (op) {
+            case LT:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (Float.compare(a[i], b[i]) < 0) ? 1 : 0;
+                }
+                break;
+            case GT:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (Float.compare(a[i], b[i]) > 0) ? 1 : 0;
+                }
+                break;
+            case LE:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (Float.compare(a[i], b[i]) <= 0) ? 1 : 0;
+                }
+                break;
+            case GE:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (Float.compare(a[i], b[i]) >= 0) ? 1 : 0;
+                }
+                break;
+            case EQ:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (Float.compare(a[i], b[i]) == 0) ? 1 : 0;
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    out[k] = rows[i];
+                    k += (Float.compare(a[i], b[i]) != 0) ? 1 : 0;
+                }
+        }
+        return k;
+    }
+}
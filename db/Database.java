@@ -1,566 +1,1383 @@
 package db;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
-import java.io.PrintWriter;
+import java.util.BitSet;
 import java.util.NoSuchElementException;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* An in-memory database of named tables. A Database may be used by many
+** threads at once: the catalog is a concurrent map, each table has its own
+** read/write lock, and the temporary tables of a query are never added to the
+** catalog, so concurrent selects share nothing but their read locks.
+**
+** With a write-ahead log open, every statement that changes the database is
+** appended to the log, in the order the statements took effect, before its
+** result is returned. */
 public class Database {
 
+    private static final int PLAN_CACHE_SIZE = 256;
+    private static final long DEFAULT_SORT_MEMORY = 64L << 20;
+
     private Map<String, Table> tableMap;
+    private PlanCache plans;
+    private volatile int parallelism;
+    private volatile long sortMemory = DEFAULT_SORT_MEMORY;
+    private volatile WriteAheadLog log;
+    private volatile BufferPool pool;
+    private final Metrics metrics = new Metrics();
+    private File checkpointDir;
+    /* Orders logged statements. Inserts hold the read lock and log their rows
+    ** under their table's write lock, so inserts into different tables run at
+    ** once; other changes, checkpoints and opening or closing the log hold the
+    ** write lock. The log does not change while either is held. */
+    private final ReentrantReadWriteLock logOrder = new ReentrantReadWriteLock();
+    /* The error returned for every change once the log could not be written. */
+    private volatile String failure;
 
     public Database() {
-        tableMap = new HashMap<>();
+        tableMap = new ConcurrentHashMap<>();
+        plans = new PlanCache(PLAN_CACHE_SIZE);
+        parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    /* Sets how many threads a single operation, such as loading a large file,
+    ** may use. */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /* Sets the bytes an "order by" may sort in memory; larger sorts spill
+    ** sorted runs to temp files and merge them. */
+    public void setSortMemory(long bytes) {
+        this.sortMemory = Math.max(1, bytes);
+    }
+
+    /* Pages the values of binary tables loaded from now on through a buffer pool
+    ** of at most 'bytes' bytes, instead of reading them onto the heap, so tables
+    ** larger than memory can be queried. Zero keeps loaded tables on the heap.
+    ** Tables already loaded keep the storage they were loaded with. */
+    public void setBufferPool(long bytes) {
+        pool = (bytes <= 0) ? null
+                : new BufferPool((int) Math.min(Integer.MAX_VALUE, bytes / PagedArray.PAGE_SIZE));
+    }
+
+    /* Returns the occupancy and hit, miss and eviction counts of the buffer
+    ** pool, or "" if there is none. */
+    public String bufferPoolStats() {
+        BufferPool p = pool;
+        return (p == null) ? "" : p.toString();
+    }
+
+    /* Registers this database's statistics with the platform MBean server
+    ** under "db:type=Database,name=<name>", and returns the name used. */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("db:type=Database,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+        return objectName;
     }
 
+    /* Returns the statistics shown by "show stats". */
+    String stats() {
+        BufferPool p = pool;
+        return metrics + ((p == null) ? "" : System.lineSeparator() + "bufferPool    " + p);
+    }
+
+    /* Runs a query. Parsed plans are cached by normalized query text, and the
+    ** values of inserts are passed as parameters, so repeated statements of the
+    ** same shape skip the regex parsing entirely. */
     public String transact(String query) {
-        return dbParse.parse(this, new String[]{query});
+        List<String> literals = new ArrayList<>();
+        String key = dbParse.normalize(query, literals);
+        Plan plan = plans.get(key);
+        if (plan == null) {
+            plan = dbParse.compile(key);
+            if (plan.isError()) {
+                return dbParse.parse(this, new String[]{query});
+            }
+            plans.put(key, plan);
+        }
+        return execute(plan, literals.toArray(new String[0]));
+    }
+
+    /* Runs a query and writes its result to 'out' as it is produced, so printing
+    ** or selecting a large table never builds the whole result as one string.
+    ** Returns whether anything was written. */
+    public boolean transact(String query, Writer out) throws IOException {
+        List<String> literals = new ArrayList<>();
+        Plan plan = plan(dbParse.normalize(query, literals));
+        if (plan == null) {
+            plan = dbParse.compile(query);
+        }
+        CountingWriter counted = new CountingWriter(out);
+        if (plan.isMutation()) {
+            counted.write(execute(plan, literals.toArray(new String[0])));
+        } else {
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                ok = plan.execute(this, literals.toArray(new String[0]), counted);
+            } finally {
+                metrics.record(plan.getCommand(), System.nanoTime() - start, !ok);
+            }
+        }
+        return counted.count > 0;
+    }
+
+    /* Parses a query once into a statement whose '?' values are bound on each
+    ** execution. Returns null if the query is malformed. */
+    public PreparedStatement prepare(String query) {
+        Plan plan = plan(dbParse.normalize(query, null));
+        return (plan == null) ? null : new PreparedStatement(this, plan);
+    }
+
+    /* Executes a plan, logging it if it changes the database and a log is
+    ** open. Statements are logged in the order they took effect on the tables
+    ** they change, and a statement's result is only returned once its record
+    ** is on disk; waiting for that happens after the locks are released, where
+    ** group commit lets one force cover many writers. A statement is only
+    ** logged if it succeeded. */
+    String execute(Plan plan, String[] values) {
+        long start = System.nanoTime();
+        String result = executeLogged(plan, values);
+        metrics.record(plan.getCommand(), System.nanoTime() - start, result.startsWith("ERROR"));
+        return result;
+    }
+
+    private String executeLogged(Plan plan, String[] values) {
+        if (!plan.isMutation()) {
+            return plan.execute(this, values);
+        } else if (failure != null) {
+            return failure;
+        } else if (log == null || plan.isSelfLogged()) {
+            return plan.execute(this, values);
+        }
+        WriteAheadLog wal;
+        String result;
+        long lsn;
+        logOrder.writeLock().lock();
+        try {
+            wal = log;
+            result = plan.execute(this, values);
+            if (wal == null || result.startsWith("ERROR")) {
+                return result;
+            }
+            lsn = append(wal, WriteAheadLog.QUERY, plan.getText(values));
+        } finally {
+            logOrder.writeLock().unlock();
+        }
+        sync(wal, lsn);
+        return result;
+    }
+
+    /* Appends a record of a change that has already been made to the log. */
+    private long append(WriteAheadLog wal, byte type, String payload) {
+        try {
+            return wal.append(type, payload);
+        } catch (IOException e) {
+            throw logFailed(e);
+        }
+    }
+
+    private void sync(WriteAheadLog wal, long lsn) {
+        try {
+            wal.sync(lsn);
+        } catch (IOException e) {
+            throw logFailed(e);
+        }
+    }
+
+    /* Puts the database into a read-only state after a change was made but
+    ** could not be logged. The tables no longer match the log, and accepting
+    ** more changes would report ones that a restart loses, so every later
+    ** change fails until the database is reopened. */
+    private UncheckedIOException logFailed(IOException e) {
+        failure = "ERROR: Changes are refused, as the log could not be written: " + e;
+        return new UncheckedIOException(failure, e);
+    }
+
+    /* Opens the write-ahead log at 'path', creating it if needed, and first
+    ** replays it into this database. With 'groupCommit', concurrent writers
+    ** share the forces of the log instead of each forcing it on its own.
+    ** Returns "" or an error message. */
+    public String openLog(String path, boolean groupCommit) {
+        logOrder.writeLock().lock();
+        try {
+            if (log != null) {
+                return "ERROR: A log is already open.";
+            }
+            return replay(path, groupCommit);
+        } finally {
+            logOrder.writeLock().unlock();
+        }
+    }
+
+    private String replay(String path, boolean groupCommit) {
+        try {
+            //The log is only set after replay, so replayed statements are not logged again
+            log = WriteAheadLog.open(new File(path), groupCommit, (type, payload) -> {
+                if (type == WriteAheadLog.QUERY) {
+                    transact(payload);
+                } else {
+                    restore(payload, type == WriteAheadLog.LOAD);
+                }
+            });
+        } catch (IOException | IllegalStateException e) {
+            return "ERROR: Could not open the log: " + e.getMessage();
+        }
+        return "";
+    }
+
+    /* Restores a table saved by a checkpoint or by a logged load, from a
+    ** "name\npath" record. A loaded table keeps the indexes of the table it
+    ** replaces, as it did when it was loaded. */
+    private void restore(String record, boolean loaded) {
+        String[] parts = record.split("\n", 2);
+        File file = new File(parts[1]);
+        checkpointDir = file.getParentFile();
+        try {
+            Table t = BinaryFormat.read(file, pool);
+            if (loaded) {
+                replaceTable(parts[0], t);
+            } else {
+                createTable(parts[0], t);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Checkpoint table " + file + " is unreadable", e);
+        }
+    }
+
+    /* Saves every table in binary form next to the log and replaces the log with
+    ** records that restore them, followed by the statements that rebuild their
+    ** indexes. Statements are held off while the tables are written, and the old
+    ** checkpoint is deleted once the new log is in place. */
+    public String checkpoint() {
+        logOrder.writeLock().lock();
+        try {
+            WriteAheadLog wal = log;
+            if (wal == null) {
+                return "ERROR: No log is open.";
+            }
+            return checkpoint(wal);
+        } finally {
+            logOrder.writeLock().unlock();
+        }
+    }
+
+    private String checkpoint(WriteAheadLog wal) {
+        File dir = checkpointDir(wal);
+        if (!dir.mkdir()) {
+            return "ERROR: Could not create " + dir;
+        }
+        List<Object[]> records = new ArrayList<>();
+        List<Object[]> indexes = new ArrayList<>();
+        int i = 0;
+        try {
+            for (Map.Entry<String, Table> e : tableMap.entrySet()) {
+                File file = new File(dir, (i++) + BinaryFormat.EXTENSION);
+                Table t = e.getValue();
+                t.readLock().lock();
+                try {
+                    BinaryFormat.write(t, file);
+                } finally {
+                    t.readLock().unlock();
+                }
+                force(file);
+                records.add(new Object[]{WriteAheadLog.TABLE, e.getKey() + "\n" + file.getPath()});
+                for (Index index : t.getIndexes()) {
+                    indexes.add(new Object[]{WriteAheadLog.QUERY, "create index " + index.getName()
+                            + " on " + e.getKey() + "(" + index.getColumn().getName()
+                            + ") using " + index.getKind()});
+                }
+            }
+            records.addAll(indexes);
+            wal.rewrite(records);
+        } catch (IOException e) {
+            deleteAll(dir);
+            return "ERROR: Checkpoint failed: " + e.getMessage();
+        }
+        if (checkpointDir != null) {
+            deleteAll(checkpointDir);
+        }
+        checkpointDir = dir;
+        return "";
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /* Closes the write-ahead log; later statements are no longer logged. */
+    public String closeLog() {
+        logOrder.writeLock().lock();
+        try {
+            WriteAheadLog wal = log;
+            if (wal == null) {
+                return "ERROR: No log is open.";
+            }
+            log = null;
+            try {
+                wal.close();
+            } catch (IOException e) {
+                return "ERROR: Could not close the log: " + e.getMessage();
+            }
+            return "";
+        } finally {
+            logOrder.writeLock().unlock();
+        }
+    }
+
+    /* Returns the cached plan for a normalized query, parsing it on a miss.
+    ** Returns null if the query is malformed. */
+    private Plan plan(String key) {
+        Plan plan = plans.get(key);
+        if (plan == null) {
+            plan = dbParse.compile(key);
+            if (plan.isError()) {
+                return null;
+            }
+            plans.put(key, plan);
+        }
+        return plan;
+    }
+
+    /* Returns a cursor over the rows of a table. The cursor reads the live
+    ** table, so rows inserted while it is open are included. */
+    public RowCursor scan(String name) {
+        Table t = getTable(name);
+        if (t == null) {
+            throw new IllegalArgumentException("ERROR: Table does not exist.");
+        }
+        return new RowCursor(t);
+    }
+
+    /* Runs a select or print statement, such as "select Wins from records
+    ** where Season > 2014", and returns a cursor over its result rows. Throws
+    ** IllegalArgumentException with the error message if the query fails. */
+    public RowCursor query(String query) {
+        Plan plan = plan(dbParse.normalize(query, null));
+        if (plan == null) {
+            throw new IllegalArgumentException(dbParse.parse(this, new String[]{query}));
+        }
+        return new RowCursor(plan.produce(this, new String[0]));
+    }
+
+    /* Counts the characters written through it. */
+    private static class CountingWriter extends FilterWriter {
+        private long count;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
     }
 
     /* Creates a table with given name and columns. */
     void createTable(String name, Column[] cols) {
-        tableMap.put(name, new Table(cols));
+        createTable(name, new Table(cols));
     }
 
     /* Adds the Table object into the database. */
     void createTable(String name, Table table) {
-        tableMap.put(name, table);
+        Table old = tableMap.put(name, table);
+        if (old != null && old != table) {
+            old.close();
+        }
     }
 
     /* Loads a table into the database where 'tableName' is the
-    ** name of the table file. */
+    ** name of the table file. A binary .tbc file is used instead of the .tbl
+    ** file when it is at least as new. Large .tbl files are parsed in parallel;
+    ** malformed rows are skipped and the first one is reported with its line.
+    ** When a log is open the loaded table is also saved next to it and the log
+    ** records that copy, so replay does not read a file a later store has
+    ** replaced. */
     String load(String tableName) {
-        String result = "";
+        if (log == null) {
+            return loadFile(tableName);
+        }
+        WriteAheadLog wal;
+        String result;
+        long lsn;
+        logOrder.writeLock().lock();
         try {
-            BufferedReader br = new BufferedReader(new FileReader(new File(tableName + ".tbl")));
-            String nextLine = br.readLine();
-            String[] splitLine = nextLine.split(",");
-            Column[] cols = new Column[splitLine.length];
-
-            for (int i = 0; i < splitLine.length; i++) {
-                String[] names = splitLine[i].split(" ");
-                if (names.length != 2) {
-                    return "ERROR: Malformed table header";
-                }
-                cols[i] = new Column(names[0], names[1]);
+            wal = log;
+            Table before = tableMap.get(tableName);
+            result = loadFile(tableName);
+            Table loaded = tableMap.get(tableName);
+            if (wal == null || loaded == before) {
+                return result;
             }
+            lsn = append(wal, WriteAheadLog.LOAD, tableName + "\n" + save(wal, loaded));
+        } finally {
+            logOrder.writeLock().unlock();
+        }
+        sync(wal, lsn);
+        return result;
+    }
 
-            createTable(tableName, cols);
-            while ((nextLine = br.readLine()) != null) {
-                splitLine = nextLine.split(",");
-                List row = new ArrayList();
-                for (int i = 0; i < splitLine.length; i++) {
-                    row.add(splitLine[i]);
-                }
-                if (!(row.get(0).equals("") && row.size() == 1)) {
-                    result = addRow(tableName, row);
+    /* Saves a loaded table in the checkpoint directory and returns its path. */
+    private String save(WriteAheadLog wal, Table t) {
+        try {
+            if (checkpointDir == null) {
+                File dir = checkpointDir(wal);
+                if (!dir.mkdir()) {
+                    throw new IOException("Could not create " + dir);
                 }
+                checkpointDir = dir;
             }
-        } catch (FileNotFoundException e) {
+            File file = Files.createTempFile(checkpointDir.toPath(), "load-",
+                    BinaryFormat.EXTENSION).toFile();
+            t.readLock().lock();
+            try {
+                BinaryFormat.write(t, file);
+            } finally {
+                t.readLock().unlock();
+            }
+            force(file);
+            return file.getPath();
+        } catch (IOException e) {
+            throw logFailed(e);
+        }
+    }
+
+    private static File checkpointDir(WriteAheadLog wal) {
+        return new File(wal.getFile().getPath() + ".ckpt-" + System.currentTimeMillis());
+    }
+
+    private static void force(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    private String loadFile(String tableName) {
+        File binary = new File(tableName + BinaryFormat.EXTENSION);
+        File text = new File(tableName + TextFormat.EXTENSION);
+        if (binary.exists() && (!text.exists() || binary.lastModified() >= text.lastModified())) {
+            return loadBinary(tableName, binary);
+        }
+
+        try {
+            TextFormat.Result result = TextFormat.read(text, parallelism);
+            metrics.count(Metrics.BYTES_READ, text.length());
+            replaceTable(tableName, result.table);
+            return result.error;
+        } catch (NoSuchFileException e) {
             return "ERROR: File: " + tableName + " not found.";
-        } catch (NoSuchElementException e) {
-            return "ERROR: Invalid file format.";
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
         } catch (IOException e) {
             return "ERROR: File reading error";
-        } catch (NullPointerException e) {
-            return "ERROR: Malformed";
         }
+    }
 
-
-        return result;
+    private String loadBinary(String tableName, File file) {
+        try {
+            replaceTable(tableName, BinaryFormat.read(file, pool));
+            metrics.count(Metrics.BYTES_READ, file.length());
+        } catch (IllegalArgumentException e) {
+            return "ERROR: Invalid file format.";
+        } catch (IOException e) {
+            return "ERROR: File reading error";
+        }
+        return "";
     }
 
-    /* Stores a table within the database to a .tbl file. */
-    String store(String name) {
+    /* Registers a freshly loaded table, rebuilding the indexes of the table it
+    ** replaces on the columns that still exist. */
+    private void replaceTable(String name, Table table) {
+        Table old = tableMap.get(name);
+        if (old != null) {
+            for (Index index : old.getIndexes()) {
+                //The new table is not yet visible to other threads, so needs no lock
+                Column c = table.getColumn(index.getColumn().getName());
+                if (c != null) {
+                    table.addIndex(Index.create(index.getName(), index.getKind(), c));
+                }
+            }
+        }
+        createTable(name, table);
+    }
 
+    /* Creates an index called 'name' of the given kind, "hash" or "btree", on
+    ** column 'column' of table 'table'. Index definitions change rarely, so they
+    ** are serialized on the database; building the index holds the table's
+    ** write lock. */
+    synchronized String createIndex(String name, String table, String column, String kind) {
+        Table t = tableMap.get(table);
+        if (t == null) {
+            return "ERROR: Table not contained in database.";
+        } else if (findIndex(name) != null) {
+            return "ERROR: Index " + name + " already exists.";
+        }
+        Column c = t.findColumn(column);
+        if (c == null) {
+            return "ERROR: Column " + column + " not found.";
+        }
+        Index index = Index.create(name, kind, c);
+        if (index == null) {
+            return "ERROR: Unknown index type: " + kind;
+        }
+        t.writeLock().lock();
         try {
-            File file = new File(name + ".tbl");
-            if (!file.exists()) {
-                file.createNewFile();
+            t.addIndex(index);
+        } finally {
+            t.writeLock().unlock();
+        }
+        return "";
+    }
+
+    /* Drops the index with the given name. */
+    synchronized String dropIndex(String name) {
+        for (Table t : tableMap.values()) {
+            Index index = findIndex(name, t);
+            if (index != null) {
+                t.removeIndex(index);
+                return "";
             }
-            PrintWriter buffer = new PrintWriter(file);
-            if (tableMap.get(name) == null) {
-                return "ERROR: Table not found.";
+        }
+        return "ERROR: Index not contained in database.";
+    }
+
+    private Index findIndex(String name, Table... tables) {
+        if (tables.length == 0) {
+            tables = tableMap.values().toArray(new Table[0]);
+        }
+        for (Table t : tables) {
+            for (Index index : t.getIndexes()) {
+                if (index.getName().equals(name)) {
+                    return index;
+                }
             }
-            buffer.println(print(name));
-            buffer.close();
+        }
+        return null;
+    }
+
+    /* Stores a table in the given format, either "text" (.tbl) or "binary" (.tbc). */
+    String store(String name, String format) {
+        if (format.equals("text")) {
+            return store(name);
+        } else if (!format.equals("binary")) {
+            return "ERROR: Unknown format: " + format;
+        }
+        Table t = tableMap.get(name);
+        if (t == null) {
+            return "ERROR: Table not found.";
+        }
+        t.readLock().lock();
+        try {
+            File file = new File(name + BinaryFormat.EXTENSION);
+            BinaryFormat.write(t, file);
+            metrics.count(Metrics.BYTES_WRITTEN, file.length());
+        } catch (IOException e) {
+            return "ERROR: IOException";
+        } finally {
+            t.readLock().unlock();
+        }
+        return "";
+    }
 
+    /* Stores a table within the database to a .tbl file. Rows are streamed to
+    ** the file a batch at a time, each rendered under the table's read lock, so
+    ** the file holds the rows the table had when the store started. */
+    String store(String name) {
+        Table t = tableMap.get(name);
+        if (t == null) {
+            return "ERROR: Table not found.";
+        }
+        File file = new File(name + TextFormat.EXTENSION);
+        try (Writer buffer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            t.write(buffer);
+            buffer.write(System.lineSeparator());
         } catch (FileNotFoundException e) {
             return "ERROR: File not found.";
         } catch (IOException e) {
             return "ERROR: IOException";
         }
+        metrics.count(Metrics.BYTES_WRITTEN, file.length());
         return "";
     }
 
     /* Drops the table with the given name from the database. */
     String drop(String name) {
-        if (!tableMap.keySet().contains(name)) {
+        Table t = tableMap.remove(name);
+        if (t == null) {
             return "ERROR: Table not contained in database.";
         }
-        tableMap.remove(name);
+        t.close();
         return "";
     }
 
     /* Inserts the list of values into the database with the given name. */
-    String insert(String name, List values) {
-        String result = "";
-        if (!tableMap.keySet().contains(name)) {
+    String insert(String name, List<?> values) {
+        return appendBatch(name, Collections.<List<?>>singletonList(values));
+    }
+
+    /* Appends a batch of rows to a table under one write lock. Cells may be
+    ** Integers, Floats, strings written as in a .tbl file (with strings quoted),
+    ** or null for NOVALUE. The whole batch is checked and converted as it is
+    ** appended, and if any row is bad none of them are kept. Returns "" or an
+    ** error message. When a log is open the batch is logged as a multi-row
+    ** insert. */
+    public String appendBatch(String name, List<? extends List<?>> rows) {
+        if (failure != null) {
+            return failure;
+        }
+        WriteAheadLog wal;
+        long[] lsn = {0};
+        String result;
+        logOrder.readLock().lock();
+        try {
+            wal = log;
+            result = insertRows(name, rows, wal, lsn);
+        } finally {
+            logOrder.readLock().unlock();
+        }
+        if (lsn[0] > 0) {
+            sync(wal, lsn[0]);
+        }
+        return result;
+    }
+
+    /* Renders a batch as "insert into name values (a,b),(c,d)". */
+    private static String insertText(String name, List<? extends List<?>> rows) {
+        StringBuilder s = new StringBuilder("insert into ").append(name).append(" values ");
+        for (List<?> row : rows) {
+            s.append('(');
+            for (Object v : row) {
+                s.append(v == null ? Column.NOVALUE : v.toString()).append(',');
+            }
+            s.setCharAt(s.length() - 1, ')');
+            s.append(',');
+        }
+        s.setLength(s.length() - 1);
+        return s.toString();
+    }
+
+    /* Appends a batch of rows; see appendBatch. If 'wal' is not null the batch
+    ** is logged before the table's write lock is released, so the inserts into
+    ** a table are logged in the order they took effect, and the log sequence
+    ** number of the record is put in 'lsn'. */
+    private String insertRows(String name, List<? extends List<?>> rows, WriteAheadLog wal,
+                              long[] lsn) {
+        Table t = tableMap.get(name);
+        if (t == null) {
             return "ERROR: Table not contained in database.";
         }
+        t.writeLock().lock();
         try {
-            result = tableMap.get(name).addRow(values);
-        } catch (NoSuchElementException e) {
-            return "ERROR: Too many elements in row.";
-        } catch (ArrayIndexOutOfBoundsException e) {
+            String result = t.addRows(rows);
+            if (!result.startsWith("ERROR")) {
+                metrics.count(Metrics.ROWS_INSERTED, rows.size());
+                if (wal != null) {
+                    lsn[0] = append(wal, WriteAheadLog.QUERY, insertText(name, rows));
+                }
+            }
+            return result;
+        } catch (NoSuchElementException | ArrayIndexOutOfBoundsException e) {
             return "ERROR: Too many elements in row.";
         } catch (IllegalArgumentException e) {
             return "ERROR: Incompatible types.";
+        } finally {
+            t.writeLock().unlock();
         }
-        return result;
     }
 
-    /* Performs a cartesian join on the set of tables passed in. */
-    private Table join(String[] tables) {
-
+    /* Performs a cartesian join on the set of tables passed in. The source
+    ** tables are only read; the joined rows are kept as row ids and only the
+    ** columns in 'needed' are copied out of them, or all of them if it is
+    ** null. The result is a new table unless a single table is passed in. When
+    ** 'ex' is not null each join is recorded in it, with the operators that
+    ** produced the tables as 'inputs'. */
+    private Table join(Table[] tables, Explain ex, Explain.Node[] inputs, Set<String> needed) {
         if (tables.length == 1) {
-            return tableMap.get(tables[0]);
+            return tables[0];
         }
-
-        Table t = join(tables[0], tables[1]);
-        createTable("$join", t);
-
-        for (int i = 2; i < tables.length; i++) {
-            t = join("$join", tables[i]);
+        Join join = new Join(tables[0]);
+        Explain.Node node = (ex == null) ? null : inputs[0];
+        for (int i = 1; i < tables.length; i++) {
+            if (ex != null) {
+                ex.begin();
+            }
+            int rows = join.size();
+            List<String> shared = join.sharedColumns(tables[i]);
+            long start = System.nanoTime();
+            join.join(tables[i]);
+            metrics.record(Metrics.JOIN, System.nanoTime() - start, false);
+            if (ex != null) {
+                String built = (rows < tables[i].size()) ? "left" : "right";
+                node = ex.end("Join", joinDetail(shared, built), (long) rows + tables[i].size(),
+                        join.size(), node, inputs[i]);
+            }
+        }
+        if (ex != null) {
+            ex.begin();
+        }
+        Table t = join.gather(needed);
+        metrics.count(Metrics.TEMP_TABLES, 1);
+        if (ex != null) {
+            ex.end("Gather", gatherDetail(join.getColNames(), needed), join.size(), t.size(), node);
         }
         return t;
     }
 
-    /* Combines two tables by merging pairs of rows. Rows are only merged if all
-    ** of their shared values are equal.
-    ** Pre-condition: f,s must not be null */
-    private Table join(String f, String s) {
-        Table first = tableMap.get(f);
-        Table second = tableMap.get(s);
-
-        List<String> joinNames = new ArrayList();
+    /* Returns the names of the columns that two joined tables share, in the
+    ** order of the first. */
+    private static List<String> sharedColumns(Collection<String> first, Collection<String> second) {
+        List<String> shared = new ArrayList<>();
+        for (String c : first) {
+            if (second.contains(c)) {
+                shared.add(c);
+            }
+        }
+        return shared;
+    }
 
-        for (String c : first.getColNames()) {
-            joinNames.add(c);
+    private static String gatherDetail(Collection<String> names, Set<String> needed) {
+        int n = 0;
+        for (String name : names) {
+            n += (needed == null || needed.contains(name)) ? 1 : 0;
         }
+        return n + " of " + names.size() + " columns";
+    }
 
-        for (String c : second.getColNames()) {
-            joinNames.add(c);
+    private static String joinDetail(List<String> keys, String build) {
+        if (keys.isEmpty()) {
+            return "nested loop, cross product";
         }
+        return "hash on " + String.join(", ", keys) + (build == null ? "" : ", build " + build);
+    }
 
-        List<String> duplicates = new ArrayList<>();
-        for (String c : first.getColNames()) {
-            if (second.getColNames().contains(c)) {
-                duplicates.add(c);
+    /* Performs a "select" operation for a parsed query whose parameters are bound.
+    ** Source tables are never modified and nothing is added to the database.
+    ** Expressions and conditions are compiled once per query. Each condition
+    ** narrows a bitmap of qualifying rows of the unprojected input, testing only
+    ** the rows that passed the earlier ones and skipping blocks ruled out by zone
+    ** maps, and the surviving rows are copied out once at the end. Conditions that an
+    ** index can answer are applied to their source table before the join. */
+    Table select(Query q) {
+        return select(q, null);
+    }
+
+    /* Runs a select, recording its operators in 'ex' unless it is null. */
+    private Table select(Query q, Explain ex) {
+        Table[] sources = sources(q);
+        if (sources == null) {
+            return null;
+        }
+        Table[] locked = lock(sources);
+        try {
+            return select(q, sources, ex);
+        } finally {
+            for (Table t : locked) {
+                t.readLock().unlock();
             }
         }
+    }
 
-        for (int i = duplicates.size() - 1; i >= 0; i--) {
-            while (joinNames.contains(duplicates.get(i))) {
-                joinNames.remove(duplicates.get(i));
+    /* Returns the tables a query reads, or null if one does not exist. */
+    private Table[] sources(Query q) {
+        Table[] sources = new Table[q.tables.length];
+        for (int i = 0; i < q.tables.length; i++) {
+            sources[i] = tableMap.get(q.tables[i]);
+            if (sources[i] == null) {
+                return null;
             }
-            joinNames.add(0, duplicates.get(i));
         }
+        return sources;
+    }
 
-        Column[] cols = new Column[joinNames.size()];
-        for (int i = 0; i < joinNames.size(); i++) {
-            Column actualCol = findColumn(joinNames.get(i), new String[]{f, s});
-            cols[i] = new Column(actualCol.getName(), actualCol.getColType());
+    /* Read locks the given tables, returning them in the order they were locked. */
+    private static Table[] lock(Table[] sources) {
+        //Read locks are taken in table id order, so readers cannot deadlock behind writers
+        Table[] locked = sources.clone();
+        Arrays.sort(locked, Comparator.comparingLong(Table::getId));
+        for (Table t : locked) {
+            t.readLock().lock();
         }
-        Table temp = new Table(cols);
-
-        for (int i = 0; i < first.size(); i++) {
-            for (int j = 0; j < second.size(); j++) {
-                List thirdRow = new ArrayList();
-
-                for (String jName : joinNames) {
-                    if (first.getColNames().contains(jName)) {
-                        thirdRow.add(first.getColumn(jName).getItem(i).toString());
-                    } else {
-                        thirdRow.add(second.getColumn(jName).getItem(j).toString());
-                    }
-                }
-
-                boolean addRow = true;
-
-                for (String d : duplicates) {
-                    if (!first.getColumn(d).getItem(i).equals(second.getColumn(d).getItem(j))) {
-                        addRow = false;
-                    }
-                }
-
+        return locked;
+    }
 
-                if (addRow) {
-                    temp.addRow(thirdRow);
-                }
+    /* Returns the operator tree of a select as text. With 'analyze' the query
+    ** is run and each operator's time, rows and allocation are included;
+    ** otherwise nothing is read but the table schemas. */
+    String explain(Query q, boolean analyze) {
+        Explain ex = new Explain(analyze);
+        if (analyze) {
+            return (select(q, ex) == null) ? "ERROR: Malformed select statement" : ex.toString();
+        }
+        Table[] sources = sources(q);
+        if (sources == null) {
+            return "ERROR: Malformed select statement";
+        }
+        Table[] locked = lock(sources);
+        try {
+            describe(q, sources, ex);
+        } finally {
+            for (Table t : locked) {
+                t.readLock().unlock();
             }
         }
-
-        return temp;
+        return ex.toString();
     }
 
-    private Comparable parser(String item) {
-        if (item.contains("\'")) {
-            return item;
-        } else if (item.contains(".")) {
-            Float f = Float.parseFloat(item);
-            return f;
-        } else {
-            Integer i = 0;
-            try {
-                i = Integer.parseInt(item);
-            } catch (ClassCastException e) {
-                return "ERROR: Wrong item type.";
-            } catch (NumberFormatException e) {
-                return item;
+    /* Adds the operators 'q' would run over 'sources' to 'ex' without running them. */
+    private void describe(Query q, Table[] sources, Explain ex) {
+        IndexProbe[] probes = new IndexProbe[q.condOps.length];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = chooseIndex(sources, q.condLeft[i], q.condOps[i], q.condRight[i]);
+        }
+        Explain.Node node = null;
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < sources.length; i++) {
+            Explain.Node scan = ex.add("Scan", q.tables[i] + " (" + sources[i].size() + " rows)"
+                    + indexDetail(probes, i));
+            Set<String> cols = sources[i].getColNames();
+            node = (i == 0) ? scan : ex.add("Join", joinDetail(sharedColumns(names, cols), null),
+                    node, scan);
+            names.addAll(cols);
+        }
+        if (sources.length > 1) {
+            node = ex.add("Gather", gatherDetail(names, q.columnNames()), node);
+        }
+        node = ex.add("Project", projectDetail(q), node);
+        for (int i = 0; i < probes.length; i++) {
+            if (probes[i] == null) {
+                String zones = "";
+                try {
+                    Condition c = Condition.compile(q.condLeft[i], q.condOps[i], q.condRight[i],
+                            sources);
+                    zones = c.usesZoneMap() ? ", zone map" : "";
+                } catch (IllegalArgumentException | ClassCastException e) {
+                    //Conditions on projected columns only resolve against the joined table
+                }
+                node = ex.add("Filter", conditionText(q, i) + zones, node);
             }
-            return i;
+        }
+        if (q.aggregates()) {
+            node = ex.add("Aggregate", aggregateDetail(q), node);
+        }
+        if (q.orderBy.length > 0) {
+            node = ex.add("Sort", orderDetail(q), node);
+        } else if (q.limit >= 0) {
+            node = ex.add("Limit", Integer.toString(q.limit), node);
+        }
+        if (!q.aggregates()) {
+            ex.add("Output", projectedCount(q, names.size()) + " columns", node);
         }
     }
 
-    private String noValueConv(String item, String type) {
-        if (item.equals("NOVALUE")) {
-            if (type.equals("string")) {
-                return "''";
-            } else if (type.equals("float")) {
-                return "0.0";
-            } else {
-                return "0";
+    private static String indexDetail(IndexProbe[] probes, int source) {
+        StringBuilder s = new StringBuilder();
+        for (IndexProbe p : probes) {
+            if (p != null && p.source == source) {
+                s.append(", ").append(p.index.getKind()).append(" index ").append(p.index.getName())
+                        .append(" for ").append(p.index.getColumn().getName()).append(' ')
+                        .append(p.op).append(' ').append(p.value);
             }
         }
-        return item;
+        return s.toString();
     }
 
-    private void filterHelper(Table preFilter, String[] condSplit) {
-        for (int i = preFilter.size() - 1; i >= 0; i--) {
-            if (isLiteral(condSplit[2])) {
-                Comparable a = preFilter.getColumn(condSplit[0]).getItem(i);
-                Comparable b = parser(condSplit[2]);
-                if (!filter(a, b, condSplit[1])) {
-                    preFilter.removeRow(i);
-                }
-            } else {
-                if (!filter(preFilter.getColumn(condSplit[0]).getItem(i),
-                        preFilter.getColumn(condSplit[2]).getItem(i), condSplit[1])) {
-                    preFilter.removeRow(i);
-                }
+    private static String projectDetail(Query q) {
+        if (q.columns == null) {
+            return "*";
+        }
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < q.columns.length; i++) {
+            s.append(i > 0 ? ", " : "").append(q.columnText(i));
+            if (q.aliases[i] != null) {
+                s.append(" as ").append(q.aliases[i]);
             }
         }
+        return s.toString();
     }
 
-    /* Performs a "select" operation with given expressions, tables, and conditions. */
-    Table select(String expr, String[] tables, String cond) {
-        Table preFilter = join(tables);
-        createTable("$preFilter", preFilter);
+    private static int projectedCount(Query q, int all) {
+        return (q.columns == null) ? all : q.columns.length;
+    }
 
-        //Handles all case
-        if (expr.equals("*")) {
-            return preFilter;
-        }
+    private static String conditionText(Query q, int i) {
+        return q.condLeft[i] + " " + q.condOps[i] + " " + q.condRight[i];
+    }
 
-        //Handles both operator and non-operator cases
-        String[] splitExpr;
-        if (expr.contains(",")) {
-            splitExpr = expr.split("\\s*,\\s*");
-        } else {
-            splitExpr = new String[]{expr};
+    /* Runs 'q' over 'sources', whose read locks are held. */
+    private Table select(Query q, Table[] sources, Explain ex) {
+        IndexProbe[] probes = new IndexProbe[q.condOps.length];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = chooseIndex(sources, q.condLeft[i], q.condOps[i], q.condRight[i]);
+        }
+        Explain.Node[] scans = new Explain.Node[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            if (ex != null) {
+                ex.begin();
+            }
+            int rows = sources[i].size();
+            BitSet matches = null;
+            for (IndexProbe p : probes) {
+                if (p != null && p.source == i) {
+                    BitSet found = p.index.lookup(p.op, p.value);
+                    if (matches == null) {
+                        matches = found;
+                    } else {
+                        matches.and(found);
+                    }
+                }
+            }
+            if (matches != null) {
+                sources[i] = sources[i].gather(matches.stream().toArray());
+                metrics.count(Metrics.TEMP_TABLES, 1);
+            }
+            metrics.count(Metrics.ROWS_SCANNED, sources[i].size());
+            if (ex != null) {
+                scans[i] = ex.end("Scan", q.tables[i] + indexDetail(probes, i), rows,
+                        sources[i].size());
+            }
         }
-
-        Column[] allCols = new Column[splitExpr.length];
         try {
-            for (int i = 0; i < splitExpr.length; i++) {
-                if (!splitExpr[i].contains("+") && !splitExpr[i].contains("-")
-                        && !splitExpr[i].contains("*") && !splitExpr[i].contains("/")) {
-                    allCols[i] = findColumn(splitExpr[i], new String[]{"$preFilter"});
-                } else {
-                    allCols[i] = evaluateExpr(splitExpr[i]);
+            Table joined = join(sources, ex, scans, q.columnNames());
+
+            //Conditions on source columns run first, so expression columns are
+            //only computed for the rows that pass them
+            List<Integer> early = new ArrayList<>();
+            List<Integer> late = new ArrayList<>();
+            for (int i = 0; i < q.condOps.length; i++) {
+                if (probes[i] == null) {
+                    (readsOnly(joined, q.condLeft[i], q.condRight[i]) ? early : late).add(i);
                 }
-
             }
-
-            //Reload all tables to prevent destructive behavior
-            for (String t : tables) {
-                load(t);
+            int[] selected = filter(q, early, joined.size(), ex, joined);
+            Table preFilter = joined;
+            if (selected.length < joined.size() && (computes(q) || !late.isEmpty())) {
+                if (ex != null) {
+                    ex.begin();
+                }
+                preFilter = gather(joined, selected, q.columnNames());
+                metrics.count(Metrics.TEMP_TABLES, 1);
+                if (ex != null) {
+                    ex.end("Gather", preFilter.getNumCols() + " columns", joined.size(),
+                            preFilter.size(), ex.last());
+                }
+                selected = null;
+            }
+            Table input = preFilter;
+            if (ex != null) {
+                ex.begin();
+            }
+            Column[] allCols;
+            if (q.columns == null) {
+                allCols = new Column[input.getNumCols()];
+                int i = 0;
+                for (String c : input.getColNames()) {
+                    allCols[i++] = input.getColumn(c);
+                }
+            } else {
+                allCols = new Column[q.columns.length];
+                for (int i = 0; i < allCols.length; i++) {
+                    if (q.columns[i] == null) {
+                        continue;
+                    } else if (q.aliases[i] == null
+                            || (q.functions[i] != null && q.columns[i].columnName() != null)) {
+                        allCols[i] = findColumn(q.columns[i].columnName(), input);
+                    } else {
+                        Expression e = q.columns[i];
+                        allCols[i] = Evaluator.evaluate(q.aliases[i], input.size(),
+                                parallelism, () -> e.compile(input));
+                    }
+                }
             }
 
             for (int i = 0; i < allCols.length; i++) {
-                if (allCols[i] == null) {
+                if (allCols[i] == null && (q.columns == null || q.columns[i] != null)) {
                     return null;
                 }
             }
 
-            String[] multiCond = new String[]{};
-            boolean condExists = false;
-            if (!(cond == null)) {
-                if (!cond.equals("")) {
-                    multiCond = cond.split(" and ");
-                    condExists = true;
-                }
+            Table projected = new Table(q.aggregates() ? groupedColumns(q, allCols) : allCols);
+            int projectedRows = (selected == null) ? input.size() : selected.length;
+            if (ex != null) {
+                ex.end("Project", projectDetail(q), projectedRows, projectedRows, ex.last());
+            }
+            //Conditions on projected columns see every row that is left
+            if (!late.isEmpty()) {
+                selected = filter(q, late, input.size(), ex, input, projected);
+            } else if (selected == null) {
+                selected = all(input.size());
             }
 
-            Table t = new Table(allCols);
-
-            if (condExists) {
-                for (String c : multiCond) {
-                    String[] condSplit = c.split("\\s* \\s*");
-                    filterHelper(t, condSplit);
+            if (!q.aggregates()) {
+                selected = order(q, selected, ex, projected, input);
+            }
+            if (ex != null) {
+                ex.begin();
+            }
+            Column[] outCols;
+            if (q.aggregates()) {
+                Aggregation a = aggregation(q, allCols, input, projected);
+                outCols = aggregate(q, allCols, a, selected);
+                if (ex != null) {
+                    ex.end("Aggregate", aggregateDetail(q) + (a.partitions() > 1
+                            ? ", " + a.partitions() + " partitions" : ""), selected.length,
+                            outCols[0].size(), ex.last());
+                }
+                int[] groups = new int[outCols[0].size()];
+                for (int i = 0; i < groups.length; i++) {
+                    groups[i] = i;
+                }
+                int[] ordered = order(q, groups, ex, new Table(outCols));
+                if (ordered != groups) {
+                    for (int i = 0; i < outCols.length; i++) {
+                        outCols[i] = outCols[i].gather(ordered);
+                    }
+                }
+            } else {
+                outCols = new Column[allCols.length];
+                for (int i = 0; i < allCols.length; i++) {
+                    outCols[i] = allCols[i].gather(selected);
+                }
+                if (ex != null) {
+                    ex.end("Output", allCols.length + " columns", selected.length,
+                            selected.length, ex.last());
                 }
-
             }
+            metrics.count(Metrics.ROWS_RETURNED, outCols[0].size());
+            metrics.count(Metrics.TEMP_TABLES, 1);
+            return new Table(outCols);
 
-            return t;
-
-        } catch (ClassCastException e) {
+        } catch (IllegalArgumentException | ClassCastException | UncheckedIOException e) {
             return null;
         }
     }
 
-    private Column evaluateExpr(String expr) {
-        if (!expr.contains(" as ")) {
-            return null;
+    /* Returns the rows of 'tables' that pass the conditions of 'q' numbered in
+    ** 'conds', which are compiled against 'tables', filtering 'rows' rows in
+    ** morsels and adding a Filter node per condition. */
+    private int[] filter(Query q, List<Integer> conds, int rows, Explain ex, Table... tables) {
+        //Each worker compiles its own conditions, as their batch vectors
+        //cannot be shared
+        List<Condition[]> compiled = new ArrayList<>();
+        long start = System.nanoTime();
+        List<int[]> morsels = Morsels.run(rows, parallelism, () -> {
+            Condition[] c = new Condition[conds.size()];
+            for (int j = 0; j < c.length; j++) {
+                int i = conds.get(j);
+                c[j] = Condition.compile(q.condLeft[i], q.condOps[i], q.condRight[i], tables);
+            }
+            compiled.add(c);
+            return (from, to) -> Condition.selectAll(c, from, to, ex != null);
+        });
+        int[] selected = concat(morsels);
+        if (!conds.isEmpty()) {
+            metrics.record(Metrics.FILTER, System.nanoTime() - start, false);
         }
-        String[] colAndName = expr.split(" as ");
-        colAndName[0] = colAndName[0].replaceAll("\\s* \\s*", "");
-        String[] exprSplitChars = colAndName[0].split("");
-        String[] exprSplit = new String[]{"", "", ""};
-        boolean foundOperator = false;
-        for (int i = 0; i < exprSplitChars.length; i++) {
-            if (exprSplitChars[i].charAt(0) > 47 && exprSplitChars[i].charAt(0) != 46
-                    && !foundOperator) {
-                exprSplit[0] += exprSplitChars[i];
-            } else if (exprSplitChars[i].charAt(0) <= 47 && exprSplitChars[i].charAt(0)
-                    != 46 && !foundOperator) {
-                exprSplit[1] = exprSplitChars[i];
-                foundOperator = true;
-            } else {
-                exprSplit[2] += exprSplitChars[i];
+        for (int j = 0; ex != null && j < conds.size(); j++) {
+            //Workers run at once, so a filter's time is summed over them
+            long nanos = 0;
+            long rowsIn = 0;
+            long rowsOut = 0;
+            for (Condition[] c : compiled) {
+                nanos += c[j].nanos;
+                rowsIn += c[j].rowsIn;
+                rowsOut += c[j].rowsOut;
             }
+            ex.add("Filter", conditionText(q, conds.get(j))
+                    + (compiled.get(0)[j].usesZoneMap() ? ", zone map" : "")
+                    + (compiled.size() > 1 ? ", " + compiled.size() + " workers" : ""),
+                    nanos, rowsIn, rowsOut, ex.last());
         }
+        return selected;
+    }
 
-        if (exprSplit[2].equals("")) {
-            return null;
+    /* Returns whether every column 'left' and 'right' read is a column of 't'. */
+    private static boolean readsOnly(Table t, Expression left, Expression right) {
+        Set<String> names = new HashSet<>();
+        left.columnNames(names);
+        right.columnNames(names);
+        for (String name : names) {
+            if (t.findColumn(name) == null) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        boolean literal = isLiteral(exprSplit[2]);
-
-        if (!literal) {
-            Column[] operands = new Column[]{findColumn(exprSplit[0], new String[]{"$preFilter"}),
-                    findColumn(exprSplit[2], new String[]{"$preFilter"})};
-            String operator = exprSplit[1];
+    /* Returns whether 'q' computes a column from an expression. */
+    private static boolean computes(Query q) {
+        for (int i = 0; q.columns != null && i < q.columns.length; i++) {
+            if (q.columns[i] != null && q.aliases[i] != null
+                    && (q.functions[i] == null || q.columns[i].columnName() == null)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            String colType = (operands[0].getColType().length() > operands[1].getColType().length())
-                    ? operands[0].getColType() : operands[1].getColType();
-            Column col = new Column(colAndName[1], colType);
-            col = operate(operands, operator, colType, col);
-            if (col == null) {
-                return null;
+    /* Copies 'rows' of the columns of 't' named in 'needed', or of every column
+    ** if 'needed' is null. A table needs a column, so the first one is copied
+    ** if no other is. */
+    private static Table gather(Table t, int[] rows, Set<String> needed) {
+        List<Column> gathered = new ArrayList<>();
+        for (String name : t.getColNames()) {
+            if (needed == null || needed.contains(name)) {
+                gathered.add(t.getColumn(name).gather(rows));
             }
+        }
+        if (gathered.isEmpty()) {
+            gathered.add(t.getColumn(t.getColNames().iterator().next()).gather(rows));
+        }
+        return new Table(gathered.toArray(new Column[0]));
+    }
 
-            return col;
+    /* Returns the rows 0 to n - 1. */
+    private static int[] all(int n) {
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
 
-        } else {
-            return literalOperate(exprSplit, colAndName);
+    /* Returns the arrays of 'parts' joined in order. */
+    private static int[] concat(List<int[]> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        int n = 0;
+        for (int[] p : parts) {
+            n += p.length;
+        }
+        int[] all = new int[n];
+        n = 0;
+        for (int[] p : parts) {
+            System.arraycopy(p, 0, all, n, p.length);
+            n += p.length;
         }
+        return all;
     }
 
-    private Column literalOperate(String[] exprSplit, String[] colAndName) {
-        Column operand = findColumn(exprSplit[0], new String[]{"$preFilter"});
-        String litString = "";
-        float litFloat = 0.0f;
-        if (exprSplit[2].charAt(0) == '\'') {
-            litString = exprSplit[2];
-        } else {
-            litFloat = Float.parseFloat(exprSplit[2]);
+    /* Returns 'rows' in the order and up to the limit of 'q', or 'rows' itself
+    ** if it has neither. Order keys resolve against 'tables' in order. */
+    private int[] order(Query q, int[] rows, Explain ex, Table... tables) {
+        if (q.orderBy.length == 0 && (q.limit < 0 || q.limit >= rows.length)) {
+            return rows;
+        }
+        if (ex != null) {
+            ex.begin();
+        }
+        if (q.orderBy.length == 0) {
+            int[] limited = Arrays.copyOf(rows, q.limit);
+            if (ex != null) {
+                ex.end("Limit", Integer.toString(q.limit), rows.length, limited.length, ex.last());
+            }
+            return limited;
+        }
+        Column[] keys = new Column[q.orderBy.length];
+        for (int k = 0; k < keys.length; k++) {
+            Evaluator e = q.orderBy[k].compile(tables);
+            keys[k] = (e.source() != null) ? e.source()
+                    : e.evaluate(q.orderBy[k].toString(), tables[0].size());
+        }
+        Sort sort = new Sort(keys, q.descending, sortMemory);
+        int[] sorted = sort.sort(rows, q.limit);
+        if (ex != null) {
+            ex.end("Sort", orderDetail(q) + ", " + sort.method(), rows.length, sorted.length,
+                    ex.last());
         }
+        return sorted;
+    }
 
-        String operator = exprSplit[1];
+    private static String orderDetail(Query q) {
+        StringBuilder s = new StringBuilder();
+        for (int k = 0; k < q.orderBy.length; k++) {
+            s.append(k > 0 ? ", " : "").append(q.orderBy[k]).append(q.descending[k] ? " desc" : "");
+        }
+        if (q.limit >= 0) {
+            s.append(" limit ").append(q.limit);
+        }
+        return s.toString();
+    }
 
-        String colType = operand.getColType();
-        Column col = new Column(colAndName[1], colType);
-        ArrayList colAdd = new ArrayList();
-        if (operator.equals("+") && colType.equals("string") && !litString.equals("")) {
-            for (int i = 0; i < operand.size(); i++) {
-                String op0 = ((noValueConv(operand.getItem(i).toString(), "string")));
-                op0 = (op0.length() > 0) ? op0.substring(0, op0.length() - 1) : op0;
-                litString = litString.substring(1, litString.length());
-                colAdd.add(op0 + litString);
+    /* Returns the projected columns that are not aggregates. */
+    private static Column[] groupedColumns(Query q, Column[] allCols) {
+        List<Column> cols = new ArrayList<>();
+        for (int i = 0; i < allCols.length; i++) {
+            if (q.functions[i] == null) {
+                cols.add(allCols[i]);
             }
-        } else if (litString.equals("")) {
+        }
+        return cols.toArray(new Column[0]);
+    }
 
-            if (operator.equals("+")) {
-                for (int i = 0; i < operand.size(); i++) {
-                    colAdd.add((Float.parseFloat(noValueConv(operand.getItem(i).toString(),
-                            "float")) + litFloat));
-                }
-            } else if (operator.equals("-")) {
-                for (int i = 0; i < operand.size(); i++) {
-                    colAdd.add((Float.parseFloat(noValueConv(operand.getItem(i).toString(),
-                            "float")) - litFloat));
-                }
-            } else if (operator.equals("*")) {
-                for (int i = 0; i < operand.size(); i++) {
-                    colAdd.add((Float.parseFloat(noValueConv(operand.getItem(i).toString(),
-                            "float")) * litFloat));
-                }
-            } else if (operator.equals("/")) {
-                for (int i = 0; i < operand.size(); i++) {
-                    colAdd.add((Float.parseFloat(noValueConv(operand.getItem(i).toString(),
-                            "float")) / litFloat));
-                }
+    /* Compiles the group by keys and aggregates of 'q'. Keys resolve against
+    ** the joined table and then the projected columns, like conditions. */
+    private static Aggregation aggregation(Query q, Column[] allCols, Table preFilter,
+            Table projected) {
+        Column[] keys = new Column[q.groupBy.length];
+        for (int k = 0; k < keys.length; k++) {
+            Evaluator e = q.groupBy[k].compile(preFilter, projected);
+            keys[k] = (e.source() != null) ? e.source()
+                    : e.evaluate(q.groupBy[k].toString(), preFilter.size());
+        }
+        List<String> functions = new ArrayList<>();
+        List<Column> args = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < allCols.length; i++) {
+            if (q.functions[i] != null) {
+                functions.add(q.functions[i]);
+                args.add(allCols[i]);
+                names.add(q.aliases[i]);
             }
+        }
+        return new Aggregation(keys, functions.toArray(new String[0]),
+                args.toArray(new Column[0]), names.toArray(new String[0]));
+    }
 
-            if (colType.equals("int") && !exprSplit[2].contains(".")) {
-                for (int i = 0; i < colAdd.size(); i++) {
-                    col.addLast(String.valueOf((int) Math.floor((float) colAdd.get(i))));
-                }
-            } else if (colType.equals("float")) {
-                for (int i = 0; i < colAdd.size(); i++) {
-                    col.addLast(String.valueOf((float) colAdd.get(i)));
-                }
-            } else {
-                for (int i = 0; i < colAdd.size(); i++) {
-                    col.addLast(String.valueOf(colAdd.get(i)));
-                }
-            }
-            return col;
+    /* Runs 'a' over the selected rows, returning the output columns: the
+    ** aggregates, and the grouped columns at the first row of each group. */
+    private Column[] aggregate(Query q, Column[] allCols, Aggregation a, int[] selected) {
+        Column[] results = a.run(selected, parallelism);
+        int[] first = a.firstRows();
+        Column[] outCols = new Column[allCols.length];
+        int next = 0;
+        for (int i = 0; i < allCols.length; i++) {
+            outCols[i] = (q.functions[i] == null) ? allCols[i].gather(first) : results[next++];
         }
-        return null;
+        return outCols;
     }
 
-    private Column operate(Column[] operands, String operator, String colType, Column col) {
-        try {
-            if (operator.equals("+") && colType.equals("string")) {
-                for (int i = 0; i < operands[0].size(); i++) {
-                    String op0 = (String) operands[0].getItem(i);
-                    op0 = op0.substring(0, op0.length() - 1);
-                    String op1;
-                    if (operands[1].getItem(i).equals("NOVALUE")) {
-                        op1 = "''";
-                    } else {
-                        op1 = (String) operands[1].getItem(i);
-                    }
-                    op1 = op1.substring(1, op1.length());
-                    col.addLast(op0 + op1);
-                }
-            } else if (colType.equals("float")) {
-                for (int i = 0; i < operands[0].size(); i++) {
-                    float op1;
-                    float op0 = Float.parseFloat(String.valueOf(operands[0].getItem(i)));
-                    if (operands[1].getItem(i).equals("NOVALUE")) {
-                        op1 = 0.0f;
-                    } else {
-                        op1 = Float.parseFloat(String.valueOf(operands[1].getItem(i)));
-                    }
-                    if (operator.equals("+")) {
-                        col.addLast(String.valueOf(op0 + op1));
-                    } else if (operator.equals("-")) {
-                        col.addLast(String.valueOf(op0 - op1));
-                    } else if (operator.equals("*")) {
-                        col.addLast(String.valueOf(op0 * op1));
-                    } else if (operator.equals("/")) {
-                        if (op1 == 0.0) {
-                            col.addLast("NaN");
-                        } else {
-                            col.addLast(String.valueOf(op0 / op1));
-                        }
-                    }
-                }
-            } else {
-                for (int i = 0; i < operands[0].size(); i++) {
-                    int op1;
-                    if (operands[1].getItem(i).equals("NOVALUE")) {
-                        op1 = 0;
-                    } else {
-                        op1 = (int) operands[1].getItem(i);
-                    }
-                    if (operator.equals("+")) {
-                        col.addLast(String.valueOf((int) operands[0].getItem(i)
-                                + op1));
-                    } else if (operator.equals("-")) {
-                        col.addLast(String.valueOf((int) operands[0].getItem(i)
-                                - op1));
-                    } else if (operator.equals("*")) {
-                        col.addLast(String.valueOf((int) operands[0].getItem(i)
-                                * op1));
-                    } else if (operator.equals("/")) {
-                        col.addLast(String.valueOf((int) operands[0].getItem(i)
-                                / op1));
-                    }
-                }
+    private static String aggregateDetail(Query q) {
+        StringBuilder s = new StringBuilder();
+        if (q.groupBy.length > 0) {
+            s.append("group by ");
+            for (int k = 0; k < q.groupBy.length; k++) {
+                s.append(k > 0 ? ", " : "").append(q.groupBy[k]);
             }
-            return col;
-        } catch (ClassCastException e) {
-            return null;
+            s.append("; ");
         }
+        boolean any = false;
+        for (int i = 0; i < q.columns.length; i++) {
+            if (q.functions[i] != null) {
+                s.append(any ? ", " : "").append(q.columnText(i));
+                any = true;
+            }
+        }
+        return s.toString();
     }
 
-    private boolean isLiteral(String s) {
-        return (s.charAt(0) == '\'' || s.charAt(0) < 58);
+    /* An index lookup that answers one condition on one source table. */
+    private static class IndexProbe {
+        final int source;
+        final Index index;
+        final String op;
+        final Comparable<?> value;
+
+        IndexProbe(int source, Index index, String op, Comparable<?> value) {
+            this.source = source;
+            this.index = index;
+            this.op = op;
+            this.value = value;
+        }
     }
 
-    private boolean filter(Comparable a, Comparable b, String compare) {
-        if (a.equals("NOVALUE") || b.equals("NOVALUE")) {
-            return false;
+    /* Returns the index lookup that answers the condition 'left op right', if
+    ** it compares an indexed column of one of 'sources' with a literal of the
+    ** column's type, or null. */
+    private IndexProbe chooseIndex(Table[] sources, Expression left, String op, Expression right) {
+        if (left.columnName() == null) {
+            Expression swap = left;
+            left = right;
+            right = swap;
+            op = Condition.flip(op);
         }
-        if (a.equals("NaN")) {
-            a = Float.MAX_VALUE;
+        String name = left.columnName();
+        Comparable<?> value = right.literalValue();
+        if (name == null || value == null) {
+            return null;
         }
-        if (b.equals("NaN")) {
-            b = Float.MAX_VALUE;
+
+        int source = -1;
+        Column c = null;
+        for (int i = 0; i < sources.length && c == null; i++) {
+            c = sources[i].getColumn(name);
+            source = i;
         }
-        if (compare.equals("<")) {
-            return a.compareTo(b) < 0;
-        } else if (compare.equals(">")) {
-            return a.compareTo(b) > 0;
-        } else if (compare.equals("<=")) {
-            return a.compareTo(b) <= 0;
-        } else if (compare.equals(">=")) {
-            return a.compareTo(b) >= 0;
-        } else if (compare.equals("==")) {
-            return a.equals(b);
-        } else {
-            return !a.equals(b);
+        for (int i = 0; i < sources.length && c == null; i++) {
+            c = sources[i].findColumn(name);
+            source = i;
         }
+        if (c == null) {
+            return null;
+        } else if (c instanceof FloatColumn && value instanceof Integer) {
+            value = Float.valueOf((Integer) value);
+        }
+        Index index = sources[source].findIndex(c, op);
+        if (index == null || !index.accepts(value)) {
+            return null;
+        }
+        return new IndexProbe(source, index, op, value);
     }
 
-    private Column findColumn(String name, String[] t) {
-        for (String table : t) {
-            for (String c : tableMap.get(table).getColNames()) {
-                if (name.equalsIgnoreCase(c)) {
-                    return tableMap.get(table).getColumn(c);
-                }
+    private Column findColumn(String name, Table... t) {
+        for (Table table : t) {
+            Column c = table.findColumn(name);
+            if (c != null) {
+                return c;
             }
         }
         return null;
     }
 
-    /* Prints a table with given name */
-    String print(String name) {
-        if (!tableMap.containsKey(name)) {
-            return ("ERROR: Table does not exist.");
-        } else {
-            return (tableMap.get(name).toString());
-        }
-    }
-
-    private String addRow(String name, List row) {
-        if (tableMap.containsKey(name)) {
-            return tableMap.get(name).addRow(row);
-        } else {
-            return "ERROR: Table does not exist.";
-        }
+    /* Returns the table with the given name, or null. */
+    Table getTable(String name) {
+        return tableMap.get(name);
     }
 
     public static void main(String[] args) {
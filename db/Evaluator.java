@@ -0,0 +1,551 @@
+package db;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Supplier;
+
+/* A compiled expression node. Each node has a fixed result type and reads the
+** typed storage of its columns directly, so evaluating a row involves no
+** string parsing or boxing. The state of a row is checked first; the value
+** accessors are only meaningful for rows whose state is VALUE.
+**
+** Int and float nodes also evaluate a batch of rows at a time into a
+** ValueVector: column references copy their values out in one loop, and each
+** operator is a loop over its operands' arrays, so the per-row virtual calls
+** of the row accessors are paid once per batch instead.
+**
+** NaN in any operand, and division by zero, make the result NaN. If only one
+** operand is NOVALUE it counts as 0 (or '' for strings); if both are, the
+** result is NOVALUE. */
+abstract class Evaluator {
+
+    static final int VALUE = 0;
+    static final int NOVALUE = 1;
+    static final int NAN = 2;
+
+    final String type;
+
+    Evaluator(String type) {
+        this.type = type;
+    }
+
+    abstract int state(int row);
+
+    int intAt(int row) {
+        throw new ClassCastException(type + " expression does not produce ints");
+    }
+
+    float floatAt(int row) {
+        throw new ClassCastException(type + " expression does not produce numbers");
+    }
+
+    String stringAt(int row) {
+        throw new ClassCastException(type + " expression does not produce strings");
+    }
+
+    /* Returns the column read by a column reference, or null for other nodes. */
+    Column source() {
+        return null;
+    }
+
+    /* Evaluates the rows 'rows[0..n)' into 'out'. Numeric nodes override this
+    ** with loops over whole vectors; this fallback goes a row at a time. Rows
+    ** that are not values get the value 0, as their cells hold in a column. */
+    void evaluate(int[] rows, int n, ValueVector out) {
+        boolean ints = type.equals("int");
+        out.clean = false;
+        for (int i = 0; i < n; i++) {
+            int row = rows[i];
+            int s = state(row);
+            out.states[i] = (byte) s;
+            if (ints) {
+                out.ints[i] = (s == VALUE) ? intAt(row) : 0;
+            } else {
+                out.floats[i] = (s == VALUE) ? floatAt(row) : 0.0f;
+            }
+        }
+    }
+
+    /* Evaluates the first 'rows' rows into a new column called 'name'. Numbers
+    ** are evaluated a batch at a time straight into the column's array. */
+    Column evaluate(String name, int rows) {
+        if (type.equals("int") || type.equals("float")) {
+            Evaluator e = this;
+            return evaluateBatches(name, rows, 1, () -> e);
+        }
+        Column col = Column.create(name, type);
+        col.ensureCapacity(rows);
+        for (int i = 0; i < rows; i++) {
+            int s = state(i);
+            if (s == NOVALUE) {
+                col.appendNoValue();
+            } else if (s == NAN) {
+                col.appendNaN();
+            } else if (type.equals("int")) {
+                col.appendInt(intAt(i));
+            } else if (type.equals("float")) {
+                col.appendFloat(floatAt(i));
+            } else {
+                col.appendString(stringAt(i));
+            }
+        }
+        return col;
+    }
+
+    /* Evaluates the first 'rows' rows of an expression into a new column called
+    ** 'name'. 'compile' returns a new evaluator of the expression each time it
+    ** is called. Numbers are evaluated on up to 'parallelism' threads, each with
+    ** an evaluator of its own, as the batch vectors of an evaluator cannot be
+    ** shared; strings are evaluated on this thread. */
+    static Column evaluate(String name, int rows, int parallelism, Supplier<Evaluator> compile) {
+        Evaluator e = compile.get();
+        if (!e.type.equals("int") && !e.type.equals("float")) {
+            return e.evaluate(name, rows);
+        }
+        //The first worker reuses the evaluator compiled for the type
+        Evaluator[] first = {e};
+        return e.evaluateBatches(name, rows, parallelism, () -> {
+            Evaluator next = (first[0] != null) ? first[0] : compile.get();
+            first[0] = null;
+            return next;
+        });
+    }
+
+    private Column evaluateBatches(String name, int rows, int parallelism,
+                                   Supplier<Evaluator> compile) {
+        boolean ints = type.equals("int");
+        int[] intData = ints ? new int[Math.max(rows, 1)] : null;
+        float[] floatData = ints ? null : new float[Math.max(rows, 1)];
+        BitSet noValues = new BitSet();
+        BitSet nans = new BitSet();
+        //Each morsel writes its own range of the arrays and returns its markers,
+        //numbered from its first row
+        List<BitSet[]> markers = Morsels.run(rows, parallelism, () -> {
+            Evaluator e = compile.get();
+            int[] batch = new int[ValueVector.SIZE];
+            ValueVector v = new ValueVector();
+            return (from, to) -> {
+                BitSet[] marked = {new BitSet(), new BitSet()};
+                for (int start = from; start < to; start += ValueVector.SIZE) {
+                    int n = Math.min(ValueVector.SIZE, to - start);
+                    for (int i = 0; i < n; i++) {
+                        batch[i] = start + i;
+                    }
+                    e.evaluate(batch, n, v);
+                    if (ints) {
+                        System.arraycopy(v.ints, 0, intData, start, n);
+                    } else {
+                        System.arraycopy(v.floats, 0, floatData, start, n);
+                    }
+                    for (int i = 0; !v.clean && i < n; i++) {
+                        if (v.states[i] != VALUE) {
+                            marked[v.states[i] == NOVALUE ? 0 : 1].set(start - from + i);
+                            if (ints) {
+                                intData[start + i] = 0;
+                            } else {
+                                floatData[start + i] = 0.0f;
+                            }
+                        }
+                    }
+                }
+                return marked;
+            };
+        });
+        for (int m = 0; m < markers.size(); m++) {
+            int first = m * Morsels.MORSEL_ROWS;
+            BitSet[] marked = markers.get(m);
+            for (int i = marked[0].nextSetBit(0); i >= 0; i = marked[0].nextSetBit(i + 1)) {
+                noValues.set(first + i);
+            }
+            for (int i = marked[1].nextSetBit(0); i >= 0; i = marked[1].nextSetBit(i + 1)) {
+                nans.set(first + i);
+            }
+        }
+        Column col;
+        if (ints) {
+            IntColumn c = new IntColumn(name, type);
+            c.setData(intData, rows);
+            col = c;
+        } else {
+            FloatColumn c = new FloatColumn(name, type);
+            c.setData(floatData, rows);
+            col = c;
+        }
+        col.setMarkers(noValues, nans);
+        col.setZones(null);
+        return col;
+    }
+
+    /* Returns an evaluator reading column 'c'. */
+    static Evaluator column(Column c) {
+        if (c instanceof IntColumn) {
+            return new IntRef((IntColumn) c);
+        } else if (c instanceof FloatColumn) {
+            return new FloatRef((FloatColumn) c);
+        }
+        return new StringRef((StringColumn) c);
+    }
+
+    /* Returns an evaluator for a literal of the given type. */
+    static Evaluator constant(String type, String text) {
+        if (type.equals("int")) {
+            int v = Integer.parseInt(text);
+            return new Evaluator("int") {
+                int state(int row) {
+                    return VALUE;
+                }
+
+                int intAt(int row) {
+                    return v;
+                }
+
+                float floatAt(int row) {
+                    return v;
+                }
+
+                void evaluate(int[] rows, int n, ValueVector out) {
+                    Arrays.fill(out.ints, 0, n, v);
+                    out.clean = true;
+                }
+            };
+        } else if (type.equals("float")) {
+            float v = Float.parseFloat(text);
+            return new Evaluator("float") {
+                int state(int row) {
+                    return VALUE;
+                }
+
+                float floatAt(int row) {
+                    return v;
+                }
+
+                void evaluate(int[] rows, int n, ValueVector out) {
+                    Arrays.fill(out.floats, 0, n, v);
+                    out.clean = true;
+                }
+            };
+        }
+        return new Evaluator("string") {
+            int state(int row) {
+                return VALUE;
+            }
+
+            String stringAt(int row) {
+                return text;
+            }
+        };
+    }
+
+    /* Returns an evaluator applying 'op' to two operands, picking the node class
+    ** for the operator and result type up front. */
+    static Evaluator binary(char op, Evaluator l, Evaluator r) {
+        if (l.type.equals("string") || r.type.equals("string")) {
+            if (op != '+' || !l.type.equals(r.type)) {
+                throw new IllegalArgumentException("Bad operands for " + op + ": "
+                        + l.type + ", " + r.type);
+            }
+            return new Binary("string", l, r, false) {
+                String stringAt(int row) {
+                    String a = left.stringAt(row);
+                    return a.substring(0, a.length() - 1) + right.stringAt(row).substring(1);
+                }
+            };
+        } else if (l.type.equals("int") && r.type.equals("int")) {
+            switch (op) {
+                case '+':
+                    return new IntBinary(l, r, false) {
+                        int intAt(int row) {
+                            return left.intAt(row) + right.intAt(row);
+                        }
+
+                        void ints(int[] a, int[] b, int[] out, int n) {
+                            for (int i = 0; i < n; i++) {
+                                out[i] = a[i] + b[i];
+                            }
+                        }
+                    };
+                case '-':
+                    return new IntBinary(l, r, false) {
+                        int intAt(int row) {
+                            return left.intAt(row) - right.intAt(row);
+                        }
+
+                        void ints(int[] a, int[] b, int[] out, int n) {
+                            for (int i = 0; i < n; i++) {
+                                out[i] = a[i] - b[i];
+                            }
+                        }
+                    };
+                case '*':
+                    return new IntBinary(l, r, false) {
+                        int intAt(int row) {
+                            return left.intAt(row) * right.intAt(row);
+                        }
+
+                        void ints(int[] a, int[] b, int[] out, int n) {
+                            for (int i = 0; i < n; i++) {
+                                out[i] = a[i] * b[i];
+                            }
+                        }
+                    };
+                default:
+                    return new IntBinary(l, r, true) {
+                        int intAt(int row) {
+                            int b = right.intAt(row);
+                            return b == 0 ? 0 : left.intAt(row) / b;
+                        }
+
+                        void ints(int[] a, int[] b, int[] out, int n) {
+                            for (int i = 0; i < n; i++) {
+                                out[i] = b[i] == 0 ? 0 : a[i] / b[i];
+                            }
+                        }
+                    };
+            }
+        }
+        switch (op) {
+            case '+':
+                return new FloatBinary(l, r, false) {
+                    float floatAt(int row) {
+                        return left.floatAt(row) + right.floatAt(row);
+                    }
+
+                    void floats(float[] a, float[] b, float[] out, int n) {
+                        for (int i = 0; i < n; i++) {
+                            out[i] = a[i] + b[i];
+                        }
+                    }
+                };
+            case '-':
+                return new FloatBinary(l, r, false) {
+                    float floatAt(int row) {
+                        return left.floatAt(row) - right.floatAt(row);
+                    }
+
+                    void floats(float[] a, float[] b, float[] out, int n) {
+                        for (int i = 0; i < n; i++) {
+                            out[i] = a[i] - b[i];
+                        }
+                    }
+                };
+            case '*':
+                return new FloatBinary(l, r, false) {
+                    float floatAt(int row) {
+                        return left.floatAt(row) * right.floatAt(row);
+                    }
+
+                    void floats(float[] a, float[] b, float[] out, int n) {
+                        for (int i = 0; i < n; i++) {
+                            out[i] = a[i] * b[i];
+                        }
+                    }
+                };
+            default:
+                return new FloatBinary(l, r, true) {
+                    float floatAt(int row) {
+                        float b = right.floatAt(row);
+                        return b == 0.0f ? 0.0f : left.floatAt(row) / b;
+                    }
+
+                    void floats(float[] a, float[] b, float[] out, int n) {
+                        for (int i = 0; i < n; i++) {
+                            out[i] = b[i] == 0.0f ? 0.0f : a[i] / b[i];
+                        }
+                    }
+                };
+        }
+    }
+
+    private static final class IntRef extends Evaluator {
+        private final IntColumn col;
+
+        IntRef(IntColumn col) {
+            super("int");
+            this.col = col;
+        }
+
+        Column source() {
+            return col;
+        }
+
+        int state(int row) {
+            return col.isNoValue(row) ? NOVALUE : col.isNaN(row) ? NAN : VALUE;
+        }
+
+        int intAt(int row) {
+            return col.getInt(row);
+        }
+
+        float floatAt(int row) {
+            return col.getInt(row);
+        }
+
+        void evaluate(int[] rows, int n, ValueVector out) {
+            col.getInts(rows, n, out.ints);
+            out.clean = !col.hasMarkers();
+            if (!out.clean) {
+                col.states(rows, n, out.states);
+            }
+        }
+    }
+
+    private static final class FloatRef extends Evaluator {
+        private final FloatColumn col;
+
+        FloatRef(FloatColumn col) {
+            super("float");
+            this.col = col;
+        }
+
+        Column source() {
+            return col;
+        }
+
+        int state(int row) {
+            return col.isNoValue(row) ? NOVALUE : col.isNaN(row) ? NAN : VALUE;
+        }
+
+        float floatAt(int row) {
+            return col.getFloat(row);
+        }
+
+        void evaluate(int[] rows, int n, ValueVector out) {
+            col.getFloats(rows, n, out.floats);
+            out.clean = !col.hasMarkers();
+            if (!out.clean) {
+                col.states(rows, n, out.states);
+            }
+        }
+    }
+
+    private static final class StringRef extends Evaluator {
+        private final StringColumn col;
+
+        StringRef(StringColumn col) {
+            super("string");
+            this.col = col;
+        }
+
+        Column source() {
+            return col;
+        }
+
+        int state(int row) {
+            return col.isNoValue(row) ? NOVALUE : col.isNaN(row) ? NAN : VALUE;
+        }
+
+        String stringAt(int row) {
+            return col.isNoValue(row) ? "''" : col.getString(row);
+        }
+    }
+
+    private abstract static class Binary extends Evaluator {
+        final Evaluator left;
+        final Evaluator right;
+        final boolean divides;
+
+        Binary(String type, Evaluator left, Evaluator right, boolean divides) {
+            super(type);
+            this.left = left;
+            this.right = right;
+            this.divides = divides;
+        }
+
+        int state(int row) {
+            int a = left.state(row);
+            int b = right.state(row);
+            if (a == NAN || b == NAN) {
+                return NAN;
+            } else if (a == NOVALUE && b == NOVALUE) {
+                return NOVALUE;
+            } else if (divides && right.floatAt(row) == 0.0f) {
+                return NAN;
+            }
+            return VALUE;
+        }
+
+        /* Sets the states of 'out' from the operand vectors 'l' and 'r' the way
+        ** state() does for one row; 'r.floats' holds the divisors. */
+        void states(ValueVector l, ValueVector r, int n, ValueVector out) {
+            if (l.clean && r.clean && !divides) {
+                out.clean = true;
+                return;
+            }
+            out.clean = false;
+            for (int i = 0; i < n; i++) {
+                int a = l.state(i);
+                int b = r.state(i);
+                if (a == NAN || b == NAN) {
+                    out.states[i] = NAN;
+                } else if (a == NOVALUE && b == NOVALUE) {
+                    out.states[i] = NOVALUE;
+                } else if (divides && r.floats[i] == 0.0f) {
+                    out.states[i] = NAN;
+                } else {
+                    out.states[i] = VALUE;
+                }
+            }
+        }
+    }
+
+    /* An int operator whose vector form is a loop over int arrays. */
+    private abstract static class IntBinary extends Binary {
+        private ValueVector l;
+        private ValueVector r;
+
+        IntBinary(Evaluator left, Evaluator right, boolean divides) {
+            super("int", left, right, divides);
+        }
+
+        float floatAt(int row) {
+            return intAt(row);
+        }
+
+        abstract void ints(int[] a, int[] b, int[] out, int n);
+
+        void evaluate(int[] rows, int n, ValueVector out) {
+            if (l == null) {
+                l = new ValueVector();
+                r = new ValueVector();
+            }
+            left.evaluate(rows, n, l);
+            right.evaluate(rows, n, r);
+            ints(l.ints, r.ints, out.ints, n);
+            if (divides) {
+                r.toFloats(n);
+            }
+            states(l, r, n, out);
+        }
+    }
+
+    /* A float operator whose vector form is a loop over float arrays; int
+    ** operands are widened a vector at a time. */
+    private abstract static class FloatBinary extends Binary {
+        private ValueVector l;
+        private ValueVector r;
+
+        FloatBinary(Evaluator left, Evaluator right, boolean divides) {
+            super("float", left, right, divides);
+        }
+
+        abstract void floats(float[] a, float[] b, float[] out, int n);
+
+        void evaluate(int[] rows, int n, ValueVector out) {
+            if (l == null) {
+                l = new ValueVector();
+                r = new ValueVector();
+            }
+            left.evaluate(rows, n, l);
+            right.evaluate(rows, n, r);
+            if (left.type.equals("int")) {
+                l.toFloats(n);
+            }
+            if (right.type.equals("int")) {
+                r.toFloats(n);
+            }
+            floats(l.floats, r.floats, out.floats, n);
+            states(l, r, n, out);
+        }
+    }
+}
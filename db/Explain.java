@@ -0,0 +1,140 @@
+package db;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+/* The operator tree of a select, as printed by "explain". The stages of a
+** select each run to completion before the next starts, so when a query is
+** analyzed every operator is timed on its own: 'begin' is called before an
+** operator runs and 'end' after it, recording its wall time, the rows it read
+** and produced, and the bytes the thread allocated meanwhile. */
+class Explain {
+
+    /* One operator and its inputs. The measurements are -1 until it has run. */
+    static class Node {
+        private final String operator;
+        private final String detail;
+        private final List<Node> inputs;
+        private long nanos = -1;
+        private long rowsIn = -1;
+        private long rowsOut = -1;
+        private long bytes = -1;
+
+        private Node(String operator, String detail, Node... inputs) {
+            this.operator = operator;
+            this.detail = detail;
+            this.inputs = Arrays.asList(inputs);
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean analyze;
+    private Node root;
+    private long started;
+    private long allocated;
+    private long total;
+
+    Explain(boolean analyze) {
+        this.analyze = analyze;
+    }
+
+    /* Starts timing the next operator. */
+    void begin() {
+        allocated = allocatedBytes();
+        started = System.nanoTime();
+    }
+
+    /* Adds an operator that has just run, reading 'rowsIn' rows and producing
+    ** 'rowsOut'. The last operator added is the root of the tree. */
+    Node end(String operator, String detail, long rowsIn, long rowsOut, Node... inputs) {
+        long elapsed = System.nanoTime() - started;
+        Node n = add(operator, detail, inputs);
+        n.nanos = elapsed;
+        n.rowsIn = rowsIn;
+        n.rowsOut = rowsOut;
+        long now = allocatedBytes();
+        n.bytes = (now < 0 || allocated < 0) ? -1 : now - allocated;
+        total += elapsed;
+        return n;
+    }
+
+    /* Adds an operator that was measured by its caller, such as one of several
+    ** filters that run interleaved a batch at a time. */
+    Node add(String operator, String detail, long nanos, long rowsIn, long rowsOut,
+             Node... inputs) {
+        Node n = add(operator, detail, inputs);
+        n.nanos = nanos;
+        n.rowsIn = rowsIn;
+        n.rowsOut = rowsOut;
+        total += nanos;
+        return n;
+    }
+
+    /* Returns the operator added last. */
+    Node last() {
+        return root;
+    }
+
+    /* Adds an operator that has not been run. */
+    Node add(String operator, String detail, Node... inputs) {
+        root = new Node(operator, detail, inputs);
+        return root;
+    }
+
+    /* Returns the bytes allocated by the current thread so far, or -1 if the
+    ** JVM does not count them. */
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) THREADS;
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+                return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        if (root != null) {
+            render(s, root, 0);
+        }
+        if (analyze) {
+            s.append(String.format("Total: %.3f ms", total / 1e6));
+        }
+        return s.toString().trim();
+    }
+
+    private void render(StringBuilder s, Node n, int depth) {
+        for (int i = 0; i < depth; i++) {
+            s.append("  ");
+        }
+        s.append(depth > 0 ? "-> " : "").append(n.operator);
+        if (!n.detail.isEmpty()) {
+            s.append(": ").append(n.detail);
+        }
+        if (n.nanos >= 0) {
+            s.append(String.format(" (time=%.3f ms, rows in=%d, out=%d, allocated=%s)",
+                    n.nanos / 1e6, n.rowsIn, n.rowsOut, bytes(n.bytes)));
+        }
+        s.append('\n');
+        for (Node input : n.inputs) {
+            render(s, input, depth + 1);
+        }
+    }
+
+    private static String bytes(long b) {
+        if (b < 0) {
+            return "n/a";
+        } else if (b < 1024) {
+            return b + " B";
+        } else if (b < 1024 * 1024) {
+            return String.format("%.1f KB", b / 1024.0);
+        }
+        return String.format("%.1f MB", b / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,386 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/* A parsed column expression such as "(Wins + Ties) / Losses". Expressions are
+** parsed once into a tree of columns, literals and binary operators, constant
+** folded, and then compiled against a table into an Evaluator tree that works
+** on the typed column storage directly. */
+abstract class Expression {
+
+    /* Parses 'expr', throwing IllegalArgumentException if it is malformed. */
+    static Expression parse(String expr) {
+        return parse(expr, 0);
+    }
+
+    /* Parses 'expr', numbering its '?' parameters from 'firstParam'. */
+    static Expression parse(String expr, int firstParam) {
+        Parser p = new Parser(tokenize(expr));
+        p.params = firstParam;
+        Expression e = p.expression();
+        if (p.pos != p.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected token: " + p.tokens.get(p.pos));
+        }
+        return e.fold();
+    }
+
+    /* Splits a condition such as "Wins + Ties >= 10" into its two sides and operator. */
+    static String[] splitComparison(String cond) {
+        List<String> tokens = tokenize(cond);
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            String t = tokens.get(i);
+            if (t.equals("(")) {
+                depth++;
+            } else if (t.equals(")")) {
+                depth--;
+            } else if (depth == 0 && isComparison(t)) {
+                return new String[]{join(tokens.subList(0, i)), t, join(tokens.subList(i + 1,
+                        tokens.size()))};
+            }
+        }
+        throw new IllegalArgumentException("Missing comparison in condition: " + cond);
+    }
+
+    /* Returns the number of '?' parameters in 'expr'. */
+    static int countParams(String expr) {
+        int n = 0;
+        for (String t : tokenize(expr)) {
+            if (t.equals("?")) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /* Returns a literal for 'text', typed the same way as literals in expressions. */
+    static Expression literal(String text) {
+        Expression e = parse(text);
+        if (!(e instanceof Literal)) {
+            throw new IllegalArgumentException("Not a literal: " + text);
+        }
+        return e;
+    }
+
+    /* Returns this expression with its parameters replaced by literals. */
+    Expression bind(String[] params) {
+        return this;
+    }
+
+    /* Returns the name of the referenced column, or null if this is not a bare column. */
+    String columnName() {
+        return null;
+    }
+
+    /* Adds the names of the columns the expression refers to to 'names'. */
+    void columnNames(Set<String> names) {
+    }
+
+    /* Returns the value of a literal as an Integer, Float or String, or null if
+    ** this is not a literal. */
+    Comparable<?> literalValue() {
+        return null;
+    }
+
+    abstract Expression fold();
+
+    /* Compiles the expression, resolving column names against 'tables' in order. */
+    abstract Evaluator compile(Table... tables);
+
+    static boolean isComparison(String t) {
+        return t.equals("<") || t.equals(">") || t.equals("<=") || t.equals(">=")
+                || t.equals("==") || t.equals("!=");
+    }
+
+    private static String join(List<String> tokens) {
+        return String.join(" ", tokens);
+    }
+
+    static List<String> tokenize(String s) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                int end = s.indexOf('\'', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated string: " + s.substring(i));
+                }
+                tokens.add(s.substring(i, end + 1));
+                i = end + 1;
+            } else if ("<>=!".indexOf(c) >= 0) {
+                int end = (i + 1 < s.length() && s.charAt(i + 1) == '=') ? i + 2 : i + 1;
+                tokens.add(s.substring(i, end));
+                i = end;
+            } else if ("+-*/()".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int start = i;
+                while (i < s.length() && !Character.isWhitespace(s.charAt(i))
+                        && "'<>=!+-*/()".indexOf(s.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(s.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /* Recursive descent parser over the expression grammar:
+    ** expr := term (('+' | '-') term)*, term := unary (('*' | '/') unary)*,
+    ** unary := '-' unary | primary, primary := literal | column | '(' expr ')' */
+    private static class Parser {
+        private List<String> tokens;
+        private int pos;
+        private int params;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        private String peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        private String next() {
+            if (pos >= tokens.size()) {
+                throw new IllegalArgumentException("Unexpected end of expression");
+            }
+            return tokens.get(pos++);
+        }
+
+        Expression expression() {
+            Expression e = term();
+            while ("+".equals(peek()) || "-".equals(peek())) {
+                char op = next().charAt(0);
+                e = new Binary(op, e, term());
+            }
+            return e;
+        }
+
+        private Expression term() {
+            Expression e = unary();
+            while ("*".equals(peek()) || "/".equals(peek())) {
+                char op = next().charAt(0);
+                e = new Binary(op, e, unary());
+            }
+            return e;
+        }
+
+        private Expression unary() {
+            if ("-".equals(peek())) {
+                next();
+                return new Binary('-', new Literal("int", "0"), unary());
+            }
+            return primary();
+        }
+
+        private Expression primary() {
+            String t = next();
+            if (t.equals("(")) {
+                Expression e = expression();
+                if (!")".equals(next())) {
+                    throw new IllegalArgumentException("Missing )");
+                }
+                return e;
+            } else if (t.equals("?")) {
+                return new Param(params++);
+            } else if (t.charAt(0) == '\'') {
+                return new Literal("string", t);
+            } else if (Character.isDigit(t.charAt(0)) || t.charAt(0) == '.') {
+                try {
+                    if (t.contains(".")) {
+                        Float.parseFloat(t);
+                        return new Literal("float", t);
+                    }
+                    Integer.parseInt(t);
+                    return new Literal("int", t);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed number: " + t);
+                }
+            } else if ("+-*/)".contains(t) || isComparison(t)) {
+                throw new IllegalArgumentException("Unexpected token: " + t);
+            }
+            return new ColumnRef(t);
+        }
+    }
+
+    private static class ColumnRef extends Expression {
+        private String name;
+
+        ColumnRef(String name) {
+            this.name = name;
+        }
+
+        @Override
+        String columnName() {
+            return name;
+        }
+
+        @Override
+        void columnNames(Set<String> names) {
+            names.add(name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        @Override
+        Expression fold() {
+            return this;
+        }
+
+        @Override
+        Evaluator compile(Table... tables) {
+            for (Table t : tables) {
+                Column c = t.findColumn(name);
+                if (c != null) {
+                    return Evaluator.column(c);
+                }
+            }
+            throw new IllegalArgumentException("Unknown column: " + name);
+        }
+    }
+
+    private static class Literal extends Expression {
+        private String type;
+        private String text;
+
+        Literal(String type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        @Override
+        Comparable<?> literalValue() {
+            if (type.equals("int")) {
+                return Integer.valueOf(text);
+            } else if (type.equals("float")) {
+                return Float.valueOf(text);
+            }
+            return text;
+        }
+
+        @Override
+        Expression fold() {
+            return this;
+        }
+
+        @Override
+        Evaluator compile(Table... tables) {
+            return Evaluator.constant(type, text);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static class Param extends Expression {
+        private int index;
+
+        Param(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Expression bind(String[] params) {
+            if (index >= params.length || params[index] == null) {
+                throw new IllegalArgumentException("Parameter " + (index + 1) + " is not set");
+            }
+            return literal(params[index]);
+        }
+
+        @Override
+        Expression fold() {
+            return this;
+        }
+
+        @Override
+        Evaluator compile(Table... tables) {
+            throw new IllegalArgumentException("Parameter " + (index + 1) + " is not set");
+        }
+
+        @Override
+        public String toString() {
+            return "?";
+        }
+    }
+
+    private static class Binary extends Expression {
+        private char op;
+        private Expression left;
+        private Expression right;
+
+        Binary(char op, Expression left, Expression right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Expression fold() {
+            left = left.fold();
+            right = right.fold();
+            if (left instanceof Literal && right instanceof Literal) {
+                Evaluator e = compile();
+                if (e.state(0) == Evaluator.VALUE) {
+                    if (e.type.equals("int")) {
+                        return new Literal("int", Integer.toString(e.intAt(0)));
+                    } else if (e.type.equals("float")) {
+                        return new Literal("float", Float.toString(e.floatAt(0)));
+                    }
+                    return new Literal("string", e.stringAt(0));
+                }
+            }
+            return this;
+        }
+
+        @Override
+        Expression bind(String[] params) {
+            Expression l = left.bind(params);
+            Expression r = right.bind(params);
+            if (l == left && r == right) {
+                return this;
+            }
+            return new Binary(op, l, r).fold();
+        }
+
+        @Override
+        void columnNames(Set<String> names) {
+            left.columnNames(names);
+            right.columnNames(names);
+        }
+
+        @Override
+        Evaluator compile(Table... tables) {
+            return Evaluator.binary(op, left.compile(tables), right.compile(tables));
+        }
+
+        private static int precedence(char op) {
+            return (op == '*' || op == '/') ? 2 : 1;
+        }
+
+        /* Renders the expression, with parentheses only where precedence needs them. */
+        @Override
+        public String toString() {
+            String l = left.toString();
+            String r = right.toString();
+            if (left instanceof Binary && precedence(((Binary) left).op) < precedence(op)) {
+                l = "(" + l + ")";
+            }
+            if (right instanceof Binary && precedence(((Binary) right).op) <= precedence(op)) {
+                r = "(" + r + ")";
+            }
+            return l + " " + op + " " + r;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package db;
+
+import java.util.Arrays;
+
+/* Column of floats backed by a growable float array, read from pages for the
+** rows loaded through the buffer pool like an IntColumn. */
+class FloatColumn extends Column {
+
+    private float[] data;
+    private PagedArray pages;
+    private int paged;
+
+    FloatColumn(String name, String type) {
+        super(name, type);
+        this.data = new float[8];
+    }
+
+    /* Uses 'data' as the storage, holding 'size' values. */
+    void setData(float[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    /* Uses the values of 'pages' as the storage. */
+    void setPages(PagedArray pages) {
+        this.pages = pages;
+        this.paged = pages.size();
+        this.size = paged;
+    }
+
+    /* Copies every value to 'dest' from 'pos' on. */
+    private void copyTo(float[] dest, int pos) {
+        if (paged > 0) {
+            pages.copyFloats(0, paged, dest, pos);
+        }
+        System.arraycopy(data, 0, dest, pos + paged, size - paged);
+    }
+
+    @Override
+    String set(int row, String item) {
+        try {
+            data[row - paged] = Float.parseFloat(item);
+        } catch (NumberFormatException e) {
+            return "ERROR: Malformed table";
+        }
+        return "";
+    }
+
+    @Override
+    void appendFloat(float item) {
+        ensureCapacity(size + 1);
+        data[size++ - paged] = item;
+        appended();
+    }
+
+    @Override
+    String appendNumber(Number item) {
+        float value = item.floatValue();
+        if (Float.isNaN(value)) {
+            appendNaN();
+        } else {
+            appendFloat(value);
+        }
+        return "";
+    }
+
+    @Override
+    void setDefault(int row) {
+        data[row - paged] = 0.0f;
+    }
+
+    @Override
+    Comparable<?> value(int row) {
+        return getFloat(row);
+    }
+
+    @Override
+    String format(int row) {
+        return String.format("%.3f", getFloat(row));
+    }
+
+    @Override
+    float getFloat(int row) {
+        return (row < paged) ? pages.getFloat(row) : data[row - paged];
+    }
+
+    @Override
+    double number(int row) {
+        return getFloat(row);
+    }
+
+    /* Copies the values of rows 'rows[0..n)' to 'out'. */
+    void getFloats(int[] rows, int n, float[] out) {
+        if (paged == 0) {
+            for (int i = 0; i < n; i++) {
+                out[i] = data[rows[i]];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                out[i] = getFloat(rows[i]);
+            }
+        }
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity - paged > data.length) {
+            data = Arrays.copyOf(data, grow(data.length, capacity - paged));
+        }
+    }
+
+    @Override
+    void truncate(int newSize) {
+        super.truncate(newSize);
+        paged = Math.min(paged, size);
+    }
+
+    @Override
+    void appendData(Column other) {
+        ((FloatColumn) other).copyTo(data, size - paged);
+    }
+
+    @Override
+    Column copyData() {
+        FloatColumn c = new FloatColumn(getName(), getColType());
+        c.data = Arrays.copyOf(data, Math.max(size - paged, 1));
+        c.pages = pages;
+        c.paged = paged;
+        return c;
+    }
+
+    @Override
+    Column gatherData(int[] rows) {
+        FloatColumn c = new FloatColumn(getName(), getColType());
+        c.data = new float[Math.max(rows.length, 1)];
+        for (int i = 0; i < rows.length; i++) {
+            c.data[i] = getFloat(rows[i]);
+        }
+        return c;
+    }
+}
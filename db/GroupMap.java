@@ -0,0 +1,73 @@
+package db;
+
+/* An open-addressing table from long keys to group numbers, which are
+** handed out in the order the keys are first added. Used to number the
+** groups of an aggregation and the join keys of a hash join. */
+final class GroupMap {
+    private long[] keys;
+    /* The group number plus one of each slot, or 0 for an empty slot. */
+    private int[] ids;
+    int size;
+
+    GroupMap(int expected) {
+        int capacity = 16;
+        while (capacity < Math.min(expected, 1 << 16) * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        ids = new int[capacity];
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /* Returns the group of 'key', adding it as a new group if it is not present. */
+    int add(long key) {
+        int mask = ids.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int id = ids[slot];
+            if (id == 0) {
+                keys[slot] = key;
+                ids[slot] = ++size;
+                if (size * 2 > ids.length) {
+                    grow();
+                }
+                return size - 1;
+            } else if (keys[slot] == key) {
+                return id - 1;
+            }
+        }
+    }
+
+    /* Returns the group of 'key', or -1 if it has not been added. */
+    int get(long key) {
+        int mask = ids.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int id = ids[slot];
+            if (id == 0 || keys[slot] == key) {
+                return id - 1;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new long[oldKeys.length * 2];
+        ids = new int[oldIds.length * 2];
+        int mask = ids.length - 1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (ids[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+}
+
@@ -0,0 +1,16 @@
+package db;
+
+import java.util.HashMap;
+
+/* Index backed by a hash table. Answers == and != in constant time per match. */
+class HashIndex extends Index {
+
+    HashIndex(String name, Column col) {
+        super(name, HASH, col, new HashMap<>());
+    }
+
+    @Override
+    boolean supports(String op) {
+        return op.equals("==") || op.equals("!=");
+    }
+}
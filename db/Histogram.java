@@ -0,0 +1,91 @@
+package db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/* A concurrent histogram of non-negative longs, such as latencies in
+** nanoseconds, in the style of an HDR histogram. Values below 2^SUB_BITS get a
+** bucket each; above that, every power of two is split into 2^SUB_BITS equal
+** buckets, so any value is known to within about 3% over the whole range.
+** Recording is an atomic increment of a bucket plus striped count, sum and max
+** cells, so threads on different cores do not contend on one cache line. */
+class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private static int bucket(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) - SUB_COUNT;
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /* Returns the smallest value that falls in bucket 'b'. */
+    private static long lowest(int b) {
+        if (b < SUB_COUNT) {
+            return b;
+        }
+        int exp = b / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + b % SUB_COUNT) << (exp - SUB_BITS);
+    }
+
+    void record(long v) {
+        if (v < 0) {
+            v = 0;
+        }
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /* Returns the value below which 'percent' percent of the recorded values
+    ** fall, rounded down to the start of its bucket. */
+    long getPercentile(double percent) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percent / 100.0));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(lowest(b), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,118 @@
+package db;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/* A secondary index over one column of a table, mapping each value to the
+** rows that hold it. Rows whose cell is NOVALUE or NaN are left out of the
+** map and answered from the column's bitmaps instead. Indexes are kept up to
+** date as rows are added to the table. */
+abstract class Index {
+
+    static final String HASH = "hash";
+    static final String BTREE = "btree";
+
+    private String name;
+    private String kind;
+    protected Column col;
+    protected Map<Comparable<?>, Rows> map;
+
+    Index(String name, String kind, Column col, Map<Comparable<?>, Rows> map) {
+        this.name = name;
+        this.kind = kind;
+        this.col = col;
+        this.map = map;
+    }
+
+    /* Returns an empty index of the given kind, or null for an unknown kind. */
+    static Index create(String name, String kind, Column col) {
+        if (kind.equals(HASH)) {
+            return new HashIndex(name, col);
+        } else if (kind.equals(BTREE)) {
+            return new SortedIndex(name, col);
+        }
+        return null;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getKind() {
+        return kind;
+    }
+
+    Column getColumn() {
+        return col;
+    }
+
+    /* Returns whether 'value' has the type of the keys of this index. */
+    boolean accepts(Comparable<?> value) {
+        if (col instanceof IntColumn) {
+            return value instanceof Integer;
+        } else if (col instanceof FloatColumn) {
+            return value instanceof Float;
+        }
+        return value instanceof String;
+    }
+
+    /* Indexes every row currently in the column. */
+    void build() {
+        map.clear();
+        for (int r = 0; r < col.size(); r++) {
+            insert(r);
+        }
+    }
+
+    /* Adds row 'row', which must already be in the column. */
+    void insert(int row) {
+        if (!col.isNoValue(row) && !col.isNaN(row)) {
+            map.computeIfAbsent(col.getItem(row), k -> new Rows()).add(row);
+        }
+    }
+
+    /* Returns whether the index can answer comparisons with 'op'. */
+    abstract boolean supports(String op);
+
+    /* Returns the rows whose cell satisfies "cell op value", using the same rules
+    ** as Condition. 'value' must have the column's type and 'op' must be
+    ** supported; every index answers == and !=, and SortedIndex adds ranges. */
+    BitSet lookup(String op, Comparable<?> value) {
+        BitSet result = new BitSet(col.size());
+        if (op.equals("==")) {
+            add(result, map.get(value));
+        } else {
+            result.set(0, col.size());
+            result.andNot(col.getNoValues());
+            Rows rows = map.get(value);
+            if (rows != null) {
+                for (int i = 0; i < rows.size; i++) {
+                    result.clear(rows.ids[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    static void add(BitSet result, Rows rows) {
+        if (rows != null) {
+            for (int i = 0; i < rows.size; i++) {
+                result.set(rows.ids[i]);
+            }
+        }
+    }
+
+    /* The ids of the rows holding one value, in increasing order. */
+    static class Rows {
+        private int[] ids = new int[2];
+        private int size;
+
+        void add(int row) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = row;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package db;
+
+import java.util.Arrays;
+
+/* Column of ints backed by a growable int array. A column loaded through the
+** buffer pool reads its first 'paged' rows from pages, and 'data' holds only the
+** rows appended after them. */
+class IntColumn extends Column {
+
+    private int[] data;
+    private PagedArray pages;
+    private int paged;
+
+    IntColumn(String name, String type) {
+        super(name, type);
+        this.data = new int[8];
+    }
+
+    /* Uses 'data' as the storage, holding 'size' values. */
+    void setData(int[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    /* Uses the values of 'pages' as the storage. */
+    void setPages(PagedArray pages) {
+        this.pages = pages;
+        this.paged = pages.size();
+        this.size = paged;
+    }
+
+    /* Copies every value to 'dest' from 'pos' on. */
+    private void copyTo(int[] dest, int pos) {
+        if (paged > 0) {
+            pages.copyInts(0, paged, dest, pos);
+        }
+        System.arraycopy(data, 0, dest, pos + paged, size - paged);
+    }
+
+    @Override
+    String set(int row, String item) {
+        try {
+            data[row - paged] = Integer.parseInt(item);
+        } catch (NumberFormatException e) {
+            return "ERROR: Malformed table";
+        }
+        return "";
+    }
+
+    @Override
+    void appendInt(int item) {
+        ensureCapacity(size + 1);
+        data[size++ - paged] = item;
+        appended();
+    }
+
+    @Override
+    String appendNumber(Number item) {
+        if (!(item instanceof Integer || item instanceof Short || item instanceof Byte)) {
+            return "ERROR: Wrong item type in column.";
+        }
+        appendInt(item.intValue());
+        return "";
+    }
+
+    @Override
+    void setDefault(int row) {
+        data[row - paged] = 0;
+    }
+
+    @Override
+    Comparable<?> value(int row) {
+        return getInt(row);
+    }
+
+    @Override
+    String format(int row) {
+        return Integer.toString(getInt(row));
+    }
+
+    @Override
+    int getInt(int row) {
+        return (row < paged) ? pages.getInt(row) : data[row - paged];
+    }
+
+    @Override
+    float getFloat(int row) {
+        return getInt(row);
+    }
+
+    @Override
+    double number(int row) {
+        return getInt(row);
+    }
+
+    /* Copies the values of rows 'rows[0..n)' to 'out'. */
+    void getInts(int[] rows, int n, int[] out) {
+        if (paged == 0) {
+            for (int i = 0; i < n; i++) {
+                out[i] = data[rows[i]];
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                out[i] = getInt(rows[i]);
+            }
+        }
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity - paged > data.length) {
+            data = Arrays.copyOf(data, grow(data.length, capacity - paged));
+        }
+    }
+
+    @Override
+    void truncate(int newSize) {
+        super.truncate(newSize);
+        paged = Math.min(paged, size);
+    }
+
+    @Override
+    void appendData(Column other) {
+        ((IntColumn) other).copyTo(data, size - paged);
+    }
+
+    @Override
+    Column copyData() {
+        IntColumn c = new IntColumn(getName(), getColType());
+        c.data = Arrays.copyOf(data, Math.max(size - paged, 1));
+        c.pages = pages;
+        c.paged = paged;
+        return c;
+    }
+
+    @Override
+    Column gatherData(int[] rows) {
+        IntColumn c = new IntColumn(getName(), getColType());
+        c.data = new int[Math.max(rows.length, 1)];
+        for (int i = 0; i < rows.length; i++) {
+            c.data[i] = getInt(rows[i]);
+        }
+        return c;
+    }
+}
@@ -0,0 +1,265 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/* A join of several tables, kept as one array of row ids per source table
+** instead of as copied rows. Each joined row is a row of every source, and
+** its cells stay in the sources until 'gather' copies out the columns a
+** query needs, by type. Tables share the columns with equal names; rows are
+** joined when all of their shared cells are equal, with NOVALUE and NaN
+** equal only to themselves and cells of different types never equal.
+**
+** Matches are found with a hash join on the key codes, numbered one key
+** column at a time as in an aggregation, that builds on the smaller side.
+** Joined rows come out ordered by the row of the left side and then by the
+** row of the right side, whichever side was built. */
+class Join {
+
+    private static final long NOVALUE_CODE = 1L << 32;
+    private static final long NAN_CODE = 2L << 32;
+    private static final long FLOAT_CODE = 3L << 32;
+    private static final long STRING_CODE = 4L << 32;
+    /* Key numbers are shifted past a code and its type bits. */
+    private static final int GROUP_SHIFT = 35;
+    /* The most rows an array can hold. */
+    private static final int MAX_ROWS = Integer.MAX_VALUE - 8;
+
+    /* The joined columns in order, each with the source it is read from. */
+    private final List<String> names = new ArrayList<>();
+    private final List<Column> columns = new ArrayList<>();
+    private final List<Integer> sourceOf = new ArrayList<>();
+    private int[][] rows;
+    private int size;
+
+    Join(Table first) {
+        for (String name : first.getColNames()) {
+            names.add(name);
+            columns.add(first.getColumn(name));
+            sourceOf.add(0);
+        }
+        size = first.size();
+        int[] all = new int[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = i;
+        }
+        rows = new int[][]{all};
+    }
+
+    List<String> getColNames() {
+        return names;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /* Returns the names of the columns the joined rows share with 't', in order. */
+    List<String> sharedColumns(Table t) {
+        List<String> shared = new ArrayList<>();
+        for (String name : names) {
+            if (t.getColNames().contains(name)) {
+                shared.add(name);
+            }
+        }
+        return shared;
+    }
+
+    /* Joins 't' to the right of the joined rows. The shared columns move to the
+    ** front and keep the cells of the left side. */
+    void join(Table t) {
+        List<String> shared = sharedColumns(t);
+        int[] left;
+        int[] right;
+        if (shared.isEmpty()) {
+            int n = rows((long) size * t.size());
+            left = new int[n];
+            right = new int[n];
+            for (int i = 0, p = 0; i < size; i++) {
+                for (int j = 0; j < t.size(); j++, p++) {
+                    left[p] = i;
+                    right[p] = j;
+                }
+            }
+        } else {
+            int[][] pairs = hashJoin(shared, t);
+            left = pairs[0];
+            right = pairs[1];
+        }
+
+        int[][] joined = new int[rows.length + 1][];
+        for (int s = 0; s < rows.length; s++) {
+            joined[s] = new int[left.length];
+            for (int p = 0; p < left.length; p++) {
+                joined[s][p] = rows[s][left[p]];
+            }
+        }
+        joined[rows.length] = right;
+
+        for (String name : t.getColNames()) {
+            if (!names.contains(name)) {
+                names.add(name);
+                columns.add(t.getColumn(name));
+                sourceOf.add(rows.length);
+            }
+        }
+        for (int k = shared.size() - 1; k >= 0; k--) {
+            int i = names.indexOf(shared.get(k));
+            names.add(0, names.remove(i));
+            columns.add(0, columns.remove(i));
+            sourceOf.add(0, sourceOf.remove(i));
+        }
+        rows = joined;
+        size = left.length;
+    }
+
+    /* Returns the pairs of left and right rows whose 'shared' cells are equal. */
+    private int[][] hashJoin(List<String> shared, Table t) {
+        Column[] leftKeys = new Column[shared.size()];
+        int[][] leftRows = new int[shared.size()][];
+        Column[] rightKeys = new Column[shared.size()];
+        for (int k = 0; k < shared.size(); k++) {
+            int i = names.indexOf(shared.get(k));
+            leftKeys[k] = columns.get(i);
+            leftRows[k] = rows[sourceOf.get(i)];
+            rightKeys[k] = t.getColumn(shared.get(k));
+        }
+
+        //Build on the smaller input, probe with the larger one
+        boolean buildLeft = size < t.size();
+        Column[] buildKeys = buildLeft ? leftKeys : rightKeys;
+        Column[] probeKeys = buildLeft ? rightKeys : leftKeys;
+        int[][] buildRows = buildLeft ? leftRows : new int[shared.size()][];
+        int[][] probeRows = buildLeft ? new int[shared.size()][] : leftRows;
+        int buildSize = buildLeft ? size : t.size();
+        int probeSize = buildLeft ? t.size() : size;
+
+        //String columns are keyed by code; the probe side's codes are translated
+        //into the build side's dictionary once, up front
+        int[][] recode = new int[shared.size()][];
+        for (int k = 0; k < shared.size(); k++) {
+            if (buildKeys[k] instanceof StringColumn && probeKeys[k] instanceof StringColumn) {
+                recode[k] = ((StringColumn) buildKeys[k]).getDictionary().recode(
+                        ((StringColumn) probeKeys[k]).getDictionary());
+            }
+        }
+
+        //Number the build rows by key, then chain the rows of each key in order
+        GroupMap[] maps = new GroupMap[shared.size()];
+        int[] groups = new int[buildSize];
+        for (int k = 0; k < maps.length; k++) {
+            maps[k] = new GroupMap(buildSize);
+            for (int r = 0; r < buildSize; r++) {
+                long code = code(buildKeys[k], row(buildRows[k], r), null);
+                groups[r] = maps[k].add((k == 0) ? code : (long) groups[r] << GROUP_SHIFT | code);
+            }
+        }
+        int[] head = new int[maps[maps.length - 1].size];
+        Arrays.fill(head, -1);
+        int[] next = new int[buildSize];
+        for (int r = buildSize - 1; r >= 0; r--) {
+            next[r] = head[groups[r]];
+            head[groups[r]] = r;
+        }
+
+        int[] probeOut = new int[Math.max(16, probeSize)];
+        int[] buildOut = new int[probeOut.length];
+        int n = 0;
+        for (int r = 0; r < probeSize; r++) {
+            int g = -1;
+            for (int k = 0; k < maps.length; k++) {
+                long code = code(probeKeys[k], row(probeRows[k], r), recode[k]);
+                g = (code < 0) ? -1 : maps[k].get((k == 0) ? code : (long) g << GROUP_SHIFT | code);
+                if (g < 0) {
+                    break;
+                }
+            }
+            for (int b = (g < 0) ? -1 : head[g]; b >= 0; b = next[b]) {
+                if (n == probeOut.length) {
+                    rows(n + 1L);
+                    int grown = (int) Math.min(MAX_ROWS, n * 2L);
+                    probeOut = Arrays.copyOf(probeOut, grown);
+                    buildOut = Arrays.copyOf(buildOut, grown);
+                }
+                probeOut[n] = r;
+                buildOut[n++] = b;
+            }
+        }
+        probeOut = Arrays.copyOf(probeOut, n);
+        buildOut = Arrays.copyOf(buildOut, n);
+        if (!buildLeft) {
+            return new int[][]{probeOut, buildOut};
+        }
+
+        //Pairs were found in right row order; a stable counting sort puts them
+        //in left row order
+        int[] start = new int[size + 1];
+        for (int i = 0; i < n; i++) {
+            start[buildOut[i] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            start[i + 1] += start[i];
+        }
+        int[] left = new int[n];
+        int[] right = new int[n];
+        for (int i = 0; i < n; i++) {
+            int p = start[buildOut[i]]++;
+            left[p] = buildOut[i];
+            right[p] = probeOut[i];
+        }
+        return new int[][]{left, right};
+    }
+
+    /* Returns 'n' as a number of joined rows, which a table can hold at most
+    ** MAX_ROWS of, throwing IllegalArgumentException if it holds more. */
+    private static int rows(long n) {
+        if (n > MAX_ROWS) {
+            throw new IllegalArgumentException("Join of more than " + MAX_ROWS + " rows");
+        }
+        return (int) n;
+    }
+
+    /* Returns the row of a source for joined row 'r', or 'r' itself when the
+    ** source is the table being joined. */
+    private static int row(int[] rows, int r) {
+        return (rows == null) ? r : rows[r];
+    }
+
+    /* Returns the code of a key cell; equal cells of the same type have equal
+    ** codes. A string code is translated through 'recode' when it is given,
+    ** and -1 is returned if the other dictionary does not hold the string. */
+    private static long code(Column c, int row, int[] recode) {
+        if (c.isNoValue(row)) {
+            return NOVALUE_CODE;
+        } else if (c.isNaN(row)) {
+            return NAN_CODE;
+        } else if (c instanceof StringColumn) {
+            int code = ((StringColumn) c).code(row);
+            if (recode != null) {
+                code = recode[code];
+            }
+            return (code < 0) ? -1 : STRING_CODE | code;
+        } else if (c instanceof FloatColumn) {
+            return FLOAT_CODE | (Float.floatToIntBits(c.getFloat(row)) & 0xFFFFFFFFL);
+        }
+        return c.getInt(row) & 0xFFFFFFFFL;
+    }
+
+    /* Copies the joined rows of the columns named in 'needed' into a new
+    ** table, or of every column if 'needed' is null. A table needs a column,
+    ** so the first one is copied if no other is. */
+    Table gather(Set<String> needed) {
+        List<Column> gathered = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (needed == null || needed.contains(names.get(i))) {
+                gathered.add(columns.get(i).gather(rows[sourceOf.get(i)]));
+            }
+        }
+        if (gathered.isEmpty()) {
+            gathered.add(columns.get(0).gather(rows[sourceOf.get(0)]));
+        }
+        return new Table(gathered.toArray(new Column[0]));
+    }
+}
@@ -0,0 +1,194 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/* Counters and latency histograms of a Database, shown by "show stats" and
+** exposed over JMX. Statements are timed per command type, and joins and
+** filters inside selects are timed on their own. Every counter and histogram
+** is created up front and indexed by a constant, so recording allocates
+** nothing. Latencies are recorded in nanoseconds and reported in
+** microseconds. */
+class Metrics implements DynamicMBean {
+
+    static final int SELECT = 0, INSERT = 1, LOAD = 2, STORE = 3, CREATE = 4, DROP = 5,
+            PRINT = 6, EXPLAIN = 7, SHOW = 8, OTHER = 9;
+    /* Internal operations, timed alongside the commands. */
+    static final int JOIN = 10, FILTER = 11;
+    private static final String[] NAMES = {"select", "insert", "load", "store", "create", "drop",
+            "print", "explain", "show", "other", "join", "filter"};
+
+    static final int ROWS_SCANNED = 0, ROWS_RETURNED = 1, ROWS_INSERTED = 2, BYTES_READ = 3,
+            BYTES_WRITTEN = 4, TEMP_TABLES = 5;
+    private static final String[] COUNTERS = {"rowsScanned", "rowsReturned", "rowsInserted",
+            "bytesRead", "bytesWritten", "tempTables"};
+
+    /* JMX attributes are named "<counter>", or "<command>.<statistic>" with
+    ** one of these statistics. */
+    private static final String[] STATS = {"count", "errors", "meanMicros", "p50Micros",
+            "p90Micros", "p99Micros", "maxMicros"};
+
+    private final Histogram[] latency = new Histogram[NAMES.length];
+    private final LongAdder[] errors = new LongAdder[NAMES.length];
+    private final LongAdder[] counters = new LongAdder[COUNTERS.length];
+
+    Metrics() {
+        for (int i = 0; i < NAMES.length; i++) {
+            latency[i] = new Histogram();
+            errors[i] = new LongAdder();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /* Returns the command type of a statement from its first word. */
+    static int command(String query) {
+        int end = query.indexOf(' ');
+        String word = (end < 0) ? query : query.substring(0, end);
+        for (int i = 0; i <= OTHER; i++) {
+            if (NAMES[i].equals(word)) {
+                return i;
+            }
+        }
+        return OTHER;
+    }
+
+    /* Records an operation of type 'type' that took 'nanos' and failed if 'error'. */
+    void record(int type, long nanos, boolean error) {
+        latency[type].record(nanos);
+        if (error) {
+            errors[type].increment();
+        }
+    }
+
+    void count(int counter, long n) {
+        counters[counter].add(n);
+    }
+
+    void reset() {
+        for (int i = 0; i < NAMES.length; i++) {
+            latency[i].reset();
+            errors[i].reset();
+        }
+        for (LongAdder c : counters) {
+            c.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s",
+                "command", "count", "errors", "mean(us)", "p50(us)", "p90(us)", "p99(us)",
+                "max(us)"));
+        for (int i = 0; i < NAMES.length; i++) {
+            Histogram h = latency[i];
+            if (h.getCount() == 0) {
+                continue;
+            }
+            s.append(String.format("%n%-8s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f", NAMES[i],
+                    h.getCount(), errors[i].sum(), h.getMean() / 1e3, h.getPercentile(50) / 1e3,
+                    h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3, h.getMax() / 1e3));
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            s.append(String.format("%n%-13s %d", COUNTERS[i], counters[i].sum()));
+        }
+        return s.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            if (COUNTERS[i].equals(attribute)) {
+                return counters[i].sum();
+            }
+        }
+        int dot = attribute.indexOf('.');
+        for (int i = 0; dot > 0 && i < NAMES.length; i++) {
+            if (NAMES[i].equals(attribute.substring(0, dot))) {
+                Histogram h = latency[i];
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return h.getCount();
+                    case "errors":
+                        return errors[i].sum();
+                    case "meanMicros":
+                        return h.getMean() / 1e3;
+                    case "p50Micros":
+                        return h.getPercentile(50) / 1e3;
+                    case "p90Micros":
+                        return h.getPercentile(90) / 1e3;
+                    case "p99Micros":
+                        return h.getPercentile(99) / 1e3;
+                    case "maxMicros":
+                        return h.getMax() / 1e3;
+                    default:
+                        break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Statistics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException e) {
+                //Unknown attributes are left out, as the JMX contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature)
+            throws ReflectionException {
+        if (action.equals("reset") && (params == null || params.length == 0)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String c : COUNTERS) {
+            attributes.add(new MBeanAttributeInfo(c, "long", c, true, false, false));
+        }
+        for (String n : NAMES) {
+            for (String stat : STATS) {
+                String type = (stat.endsWith("Micros")) ? "double" : "long";
+                attributes.add(new MBeanAttributeInfo(n + "." + stat, type, n + " " + stat,
+                        true, false, false));
+            }
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears every statistic",
+                null, "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "Database statistics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null,
+                new MBeanOperationInfo[]{reset}, null);
+    }
+}
@@ -0,0 +1,88 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/* Runs work over the rows of a table in parallel. The rows are split into
+** morsels of whole zone map blocks, and up to 'parallelism' workers on the
+** common ForkJoin pool take the next morsel until none are left, so a slow
+** morsel does not hold up the others. The result of each morsel is kept in
+** its place, and the results come back in row order whichever worker made
+** them. Fewer than PARALLEL_ROWS rows are handled as one morsel by the
+** calling thread. */
+class Morsels {
+
+    static final int PARALLEL_ROWS = 1 << 16;
+    static final int MORSEL_ROWS = 16 * ZoneMap.BLOCK;
+
+    /* Work on one range of rows. A worker is only used by one thread at a
+    ** time, so it may keep scratch state such as compiled evaluators. */
+    interface Worker<T> {
+        T run(int from, int to);
+    }
+
+    private Morsels() {
+    }
+
+    /* Returns the number of workers 'rows' rows are split between. */
+    static int workers(int rows, int parallelism) {
+        if (rows < PARALLEL_ROWS) {
+            return 1;
+        }
+        return Math.max(1, Math.min(parallelism, morsels(rows)));
+    }
+
+    private static int morsels(int rows) {
+        return (int) ((rows + (long) MORSEL_ROWS - 1) / MORSEL_ROWS);
+    }
+
+    /* Runs rows [0, rows) through workers made by 'workers', which is called
+    ** on this thread once per worker, and returns the result of each morsel
+    ** in order. Morsel m starts at row m * MORSEL_ROWS. Runtime exceptions
+    ** thrown by a worker are rethrown. */
+    static <T> List<T> run(int rows, int parallelism, Supplier<Worker<T>> workers) {
+        int n = workers(rows, parallelism);
+        if (n == 1) {
+            List<T> results = new ArrayList<>(1);
+            results.add(workers.get().run(0, rows));
+            return results;
+        }
+        int morsels = morsels(rows);
+        Object[] results = new Object[morsels];
+        AtomicInteger next = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Worker<T> w = workers.get();
+            tasks.add(() -> {
+                for (int m = next.getAndIncrement(); m < morsels; m = next.getAndIncrement()) {
+                    results[m] = w.run(m * MORSEL_ROWS,
+                            (int) Math.min(rows, (m + 1L) * MORSEL_ROWS));
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Interrupted while scanning");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) Arrays.asList(results);
+        return list;
+    }
+}
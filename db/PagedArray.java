@@ -0,0 +1,126 @@
+package db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* The 4-byte values of one column of a binary table file, read a page at a
+** time through a BufferPool instead of being held on the heap. The values are
+** read-only; a column keeps the rows appended after loading in its own array.
+**
+** A page holds PAGE_ROWS values, a whole number of zone map blocks, so a
+** filter that skips a block never reads its page. */
+class PagedArray {
+
+    static final int SHIFT = 14;
+    static final int PAGE_ROWS = 1 << SHIFT;
+    static final int PAGE_SIZE = PAGE_ROWS * 4;
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    final int id = ids.getAndIncrement();
+    private final BufferPool pool;
+    private final FileChannel channel;
+    private final long offset;
+    private final int rows;
+    /* The frame each page was last found in, checked before it is trusted. */
+    private final BufferPool.Frame[] recent;
+    /* The page of the last read, so a run of reads counts as one hit. Updated
+    ** without synchronization, so the counts are approximate under contention. */
+    private int lastPage = -1;
+
+    /* Reads 'rows' big-endian values starting at 'offset' of 'channel'. */
+    PagedArray(BufferPool pool, FileChannel channel, long offset, int rows) {
+        this.pool = pool;
+        this.channel = channel;
+        this.offset = offset;
+        this.rows = rows;
+        this.recent = new BufferPool.Frame[(rows + PAGE_ROWS - 1) >>> SHIFT];
+    }
+
+    int size() {
+        return rows;
+    }
+
+    int getInt(int row) {
+        int page = row >>> SHIFT;
+        int at = (row & (PAGE_ROWS - 1)) << 2;
+        BufferPool.Frame f = recent[page];
+        if (f != null) {
+            long stamp = f.lock.tryOptimisticRead();
+            if (f.owner == this && f.page == page) {
+                int v = f.data.getInt(at);
+                if (f.lock.validate(stamp)) {
+                    f.used = true;
+                    if (lastPage != page) {
+                        lastPage = page;
+                        pool.hit();
+                    }
+                    return v;
+                }
+            }
+        }
+        f = pool.pin(this, page);
+        try {
+            recent[page] = f;
+            lastPage = page;
+            return f.data.getInt(at);
+        } finally {
+            pool.unpin(f);
+        }
+    }
+
+    float getFloat(int row) {
+        return Float.intBitsToFloat(getInt(row));
+    }
+
+    /* Copies the values of rows [from, to) to 'dest' from 'pos' on, pinning
+    ** each page once. */
+    void copyInts(int from, int to, int[] dest, int pos) {
+        while (from < to) {
+            int page = from >>> SHIFT;
+            int end = Math.min(to, (page + 1) << SHIFT);
+            BufferPool.Frame f = pool.pin(this, page);
+            try {
+                for (int i = from; i < end; i++) {
+                    dest[pos++] = f.data.getInt((i & (PAGE_ROWS - 1)) << 2);
+                }
+            } finally {
+                pool.unpin(f);
+            }
+            from = end;
+        }
+    }
+
+    void copyFloats(int from, int to, float[] dest, int pos) {
+        while (from < to) {
+            int page = from >>> SHIFT;
+            int end = Math.min(to, (page + 1) << SHIFT);
+            BufferPool.Frame f = pool.pin(this, page);
+            try {
+                for (int i = from; i < end; i++) {
+                    dest[pos++] = f.data.getFloat((i & (PAGE_ROWS - 1)) << 2);
+                }
+            } finally {
+                pool.unpin(f);
+            }
+            from = end;
+        }
+    }
+
+    /* Reads page 'page' into 'buf', which is left with its whole capacity. */
+    void read(int page, ByteBuffer buf) throws IOException {
+        long start = offset + (long) page * PAGE_SIZE;
+        int length = Math.min(PAGE_ROWS, rows - (page << SHIFT)) * 4;
+        buf.clear();
+        buf.limit(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, start + buf.position()) < 0) {
+                throw new EOFException("Table file ended inside page " + page);
+            }
+        }
+        buf.clear();
+    }
+}
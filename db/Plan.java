@@ -0,0 +1,167 @@
+package db;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/* A parsed statement that can be executed many times. Plans hold everything
+** the regex parsing in dbParse produced, so executing one only does the work
+** of the statement itself. Values left as '?' are supplied on each execution. */
+abstract class Plan {
+
+    interface Action {
+        String run(Database d, String[] params);
+    }
+
+    /* Produces the result table of a statement, or null on failure. */
+    interface Producer {
+        Table run(Database d, String[] params);
+    }
+
+    private final int params;
+    private String text;
+    private boolean mutation;
+    private boolean selfLogged;
+    private int command = Metrics.OTHER;
+
+    Plan(int params) {
+        this.params = params;
+    }
+
+    static Plan of(int params, Action action) {
+        return new Plan(params) {
+            String execute(Database d, String[] values) {
+                return action.run(d, values);
+            }
+        };
+    }
+
+    /* Returns a plan for a statement whose result is a table. Executed with a
+    ** Writer, the table is streamed to it row by row. */
+    static Plan ofTable(int params, Producer producer, String error) {
+        return new Plan(params) {
+            String execute(Database d, String[] values) {
+                Table t = producer.run(d, values);
+                return (t == null) ? error : t.toString();
+            }
+
+            Table produce(Database d, String[] values) {
+                Table t = producer.run(d, values);
+                if (t == null) {
+                    throw new IllegalArgumentException(error);
+                }
+                return t;
+            }
+
+            boolean execute(Database d, String[] values, Writer out) throws IOException {
+                Table t = producer.run(d, values);
+                if (t == null) {
+                    out.write(error);
+                    return false;
+                }
+                t.write(out);
+                return true;
+            }
+        };
+    }
+
+    /* Returns a plan for a statement that failed to parse. */
+    static Plan error(String message) {
+        return new Plan(0) {
+            String execute(Database d, String[] values) {
+                return message;
+            }
+
+            boolean isError() {
+                return true;
+            }
+        };
+    }
+
+    /* Marks the plan as one that changes the database, so it is written to the
+    ** write-ahead log when one is open. */
+    Plan mutates() {
+        mutation = true;
+        return this;
+    }
+
+    boolean isMutation() {
+        return mutation;
+    }
+
+    /* Marks the plan as one that changes the database and appends its own
+    ** record to the write-ahead log, such as an insert, which is logged under
+    ** its table's lock so that inserts into different tables are not
+    ** serialized on the log. */
+    Plan logsItself() {
+        mutation = true;
+        selfLogged = true;
+        return this;
+    }
+
+    boolean isSelfLogged() {
+        return selfLogged;
+    }
+
+    /* Records the normalized text the plan was parsed from. */
+    Plan setText(String text) {
+        this.text = text;
+        return this;
+    }
+
+    /* Sets the command type the plan's executions are counted under. */
+    Plan setCommand(int command) {
+        this.command = command;
+        return this;
+    }
+
+    int getCommand() {
+        return command;
+    }
+
+    /* Returns the statement text with 'values' in place of its parameters. */
+    String getText(String[] values) {
+        if (values.length == 0) {
+            return text;
+        }
+        StringBuilder s = new StringBuilder();
+        boolean quoted = false;
+        int next = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (c == '?' && !quoted && next < values.length) {
+                s.append(values[next++]);
+            } else {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+    /* Returns the number of '?' parameters the statement takes. */
+    int getParams() {
+        return params;
+    }
+
+    boolean isError() {
+        return false;
+    }
+
+    abstract String execute(Database d, String[] values);
+
+    /* Executes a statement whose result is a table and returns the table.
+    ** Throws IllegalArgumentException with the error message on failure. */
+    Table produce(Database d, String[] values) {
+        throw new IllegalArgumentException("ERROR: Statement does not return rows.");
+    }
+
+    /* Executes the statement, writing its result to 'out'. Returns false if
+    ** the result was an error. */
+    boolean execute(Database d, String[] values, Writer out) throws IOException {
+        String result = execute(d, values);
+        out.write(result);
+        return !result.startsWith("ERROR");
+    }
+}
@@ -0,0 +1,31 @@
+package db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Least-recently-used cache of parsed plans, keyed by normalized query text. */
+class PlanCache {
+
+    private Map<String, Plan> plans;
+
+    PlanCache(int capacity) {
+        plans = new LinkedHashMap<String, Plan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized Plan get(String query) {
+        return plans.get(query);
+    }
+
+    synchronized void put(String query, Plan plan) {
+        plans.put(query, plan);
+    }
+
+    synchronized int size() {
+        return plans.size();
+    }
+}
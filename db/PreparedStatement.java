@@ -0,0 +1,65 @@
+package db;
+
+import java.util.Arrays;
+
+/* A statement parsed once by Database.prepare and executed many times. Values
+** written as '?' in the statement are bound with set before each execute, e.g.
+** "insert into records values ?,?,?,?,?" or "select Wins from records where
+** Season == ?". Parameters are numbered from 1 and stay bound between runs. */
+public class PreparedStatement {
+
+    private Database db;
+    private Plan plan;
+    private String[] values;
+
+    PreparedStatement(Database db, Plan plan) {
+        this.db = db;
+        this.plan = plan;
+        this.values = new String[plan.getParams()];
+    }
+
+    public int getParameterCount() {
+        return values.length;
+    }
+
+    /* Binds the value of parameter 'index', written as it would appear in a query. */
+    public PreparedStatement set(int index, String value) {
+        if (index < 1 || index > values.length) {
+            throw new IndexOutOfBoundsException("Parameter " + index + " out of range 1-"
+                    + values.length);
+        }
+        values[index - 1] = value;
+        return this;
+    }
+
+    public PreparedStatement set(int index, int value) {
+        return set(index, Integer.toString(value));
+    }
+
+    public PreparedStatement set(int index, float value) {
+        return set(index, Float.toString(value));
+    }
+
+    public PreparedStatement clear() {
+        Arrays.fill(values, null);
+        return this;
+    }
+
+    public String execute() {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                return "ERROR: Parameter " + (i + 1) + " is not set.";
+            }
+        }
+        return db.execute(plan, values.clone());
+    }
+
+    /* Binds all parameters in order and executes the statement. */
+    public String execute(String... params) {
+        if (params.length != values.length) {
+            return "ERROR: Expected " + values.length + " parameters.";
+        }
+        System.arraycopy(params, 0, values, 0, params.length);
+        return execute();
+    }
+}
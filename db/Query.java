@@ -0,0 +1,230 @@
+package db;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* The parsed clauses of a select statement. A query is parsed once, and then
+** compiled against the current tables each time it runs, so a cached or
+** prepared query never repeats the string work. Literals may be left as '?'
+** parameters and filled in with bind. */
+class Query {
+
+    private static final Pattern AGGREGATE =
+            Pattern.compile("(count|sum|avg|min|max)\\s*\\(\\s*(.+?)\\s*\\)"),
+            ORDER_KEY = Pattern.compile("(.+?)(?:\\s+(asc|desc))?");
+
+    String[] tables;
+    /* Projected expressions and their aliases; null when selecting '*'. An alias
+    ** is null for a bare column, which keeps its own name. */
+    Expression[] columns;
+    String[] aliases;
+    /* The aggregate function of each projected expression, or null for a plain
+    ** one. The expression is the function's argument, null for "count(*)", and
+    ** the alias defaults to the function's name. */
+    String[] functions;
+    Expression[] groupBy;
+    /* The order by keys, which resolve against the selected columns first,
+    ** and whether each is descending. */
+    Expression[] orderBy;
+    boolean[] descending;
+    /* The most rows to return, or -1 for no limit. */
+    int limit = -1;
+    Expression[] condLeft;
+    String[] condOps;
+    Expression[] condRight;
+    int params;
+
+    private Query() {
+    }
+
+    /* Parses the clauses of "select exprs from tables where conds". 'conds' may be
+    ** null or empty. Throws IllegalArgumentException if a clause is malformed. */
+    static Query parse(String exprs, String tables, String conds) {
+        return parse(exprs, tables, conds, null, null, null);
+    }
+
+    /* Parses "select exprs from tables where conds group by keys order by order
+    ** limit limit". Every clause after 'tables' may be null or empty. */
+    static Query parse(String exprs, String tables, String conds, String keys, String order,
+            String limit) {
+        Query q = new Query();
+        q.tables = tables.trim().split("\\s*,\\s*");
+
+        if (!exprs.trim().equals("*")) {
+            String[] splitExpr = exprs.trim().split("\\s*,\\s*");
+            q.columns = new Expression[splitExpr.length];
+            q.aliases = new String[splitExpr.length];
+            q.functions = new String[splitExpr.length];
+            for (int i = 0; i < splitExpr.length; i++) {
+                String[] colAndName = splitExpr[i].split("\\s+as\\s+");
+                String expr = colAndName[0].trim();
+                Matcher m = AGGREGATE.matcher(expr);
+                if (m.matches()) {
+                    q.functions[i] = m.group(1);
+                    expr = m.group(2);
+                    if (expr.equals("*") && !q.functions[i].equals("count")) {
+                        throw new IllegalArgumentException(m.group(1) + " needs a column");
+                    }
+                }
+                if (!expr.equals("*")) {
+                    q.columns[i] = Expression.parse(expr, q.params);
+                    q.params += Expression.countParams(expr);
+                }
+                if (colAndName.length == 2) {
+                    q.aliases[i] = colAndName[1].trim();
+                } else if (colAndName.length == 1 && q.functions[i] != null) {
+                    q.aliases[i] = q.functions[i];
+                } else if (colAndName.length != 1 || q.columns[i].columnName() == null) {
+                    throw new IllegalArgumentException("Expression needs a name: " + splitExpr[i]);
+                }
+            }
+        }
+
+        String[] multiCond = new String[]{};
+        if (conds != null && !conds.trim().equals("")) {
+            multiCond = conds.trim().split("\\s+and\\s+");
+        }
+        q.condLeft = new Expression[multiCond.length];
+        q.condOps = new String[multiCond.length];
+        q.condRight = new Expression[multiCond.length];
+        for (int i = 0; i < multiCond.length; i++) {
+            String[] parts = Expression.splitComparison(multiCond[i]);
+            q.condLeft[i] = Expression.parse(parts[0], q.params);
+            q.params += Expression.countParams(parts[0]);
+            q.condOps[i] = parts[1];
+            q.condRight[i] = Expression.parse(parts[2], q.params);
+            q.params += Expression.countParams(parts[2]);
+        }
+
+        String[] splitKeys = new String[]{};
+        if (keys != null && !keys.trim().equals("")) {
+            splitKeys = keys.trim().split("\\s*,\\s*");
+        }
+        q.groupBy = new Expression[splitKeys.length];
+        for (int i = 0; i < splitKeys.length; i++) {
+            q.groupBy[i] = Expression.parse(splitKeys[i], q.params);
+            q.params += Expression.countParams(splitKeys[i]);
+        }
+
+        String[] splitOrder = new String[]{};
+        if (order != null && !order.trim().equals("")) {
+            splitOrder = order.trim().split("\\s*,\\s*");
+        }
+        q.orderBy = new Expression[splitOrder.length];
+        q.descending = new boolean[splitOrder.length];
+        for (int i = 0; i < splitOrder.length; i++) {
+            Matcher m = ORDER_KEY.matcher(splitOrder[i]);
+            m.matches();
+            q.orderBy[i] = Expression.parse(m.group(1), q.params);
+            q.params += Expression.countParams(m.group(1));
+            q.descending[i] = "desc".equals(m.group(2));
+        }
+        if (limit != null && !limit.trim().equals("")) {
+            try {
+                q.limit = Integer.parseInt(limit.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed limit: " + limit);
+            }
+        }
+
+        if (q.aggregates()) {
+            if (q.columns == null) {
+                throw new IllegalArgumentException("Cannot select * with group by");
+            }
+            for (int i = 0; i < q.columns.length; i++) {
+                if (q.functions[i] == null && q.key(i) < 0) {
+                    throw new IllegalArgumentException("Not grouped: " + q.columns[i]);
+                }
+            }
+        }
+        return q;
+    }
+
+    /* Returns whether the query groups its rows or computes aggregates. */
+    boolean aggregates() {
+        if (groupBy.length > 0) {
+            return true;
+        }
+        for (int i = 0; columns != null && i < columns.length; i++) {
+            if (functions[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Returns the group by expression that projected expression 'i' repeats,
+    ** by its text or by its alias, or -1. */
+    int key(int i) {
+        for (int k = 0; k < groupBy.length; k++) {
+            if (groupBy[k].toString().equals(columns[i].toString())
+                    || (aliases[i] != null && aliases[i].equals(groupBy[k].columnName()))) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /* Returns projected expression 'i' as written, without its alias. */
+    String columnText(int i) {
+        if (functions[i] == null) {
+            return columns[i].toString();
+        }
+        return functions[i] + "(" + ((columns[i] == null) ? "*" : columns[i].toString()) + ")";
+    }
+
+    /* Returns the names of the columns the query refers to, matched ignoring
+    ** case as column names are, or null if it selects '*'. */
+    Set<String> columnNames() {
+        if (columns == null) {
+            return null;
+        }
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (Expression[] clause : new Expression[][]{columns, groupBy, orderBy, condLeft,
+                condRight}) {
+            for (Expression e : clause) {
+                if (e != null) {
+                    e.columnNames(names);
+                }
+            }
+        }
+        return names;
+    }
+
+    /* Returns a copy of this query with its parameters replaced by 'values'. */
+    Query bind(String[] values) {
+        if (params == 0) {
+            return this;
+        }
+        Query q = new Query();
+        q.tables = tables;
+        q.aliases = aliases;
+        q.functions = functions;
+        q.condOps = condOps;
+        if (columns != null) {
+            q.columns = new Expression[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                q.columns[i] = (columns[i] == null) ? null : columns[i].bind(values);
+            }
+        }
+        q.groupBy = new Expression[groupBy.length];
+        for (int i = 0; i < groupBy.length; i++) {
+            q.groupBy[i] = groupBy[i].bind(values);
+        }
+        q.orderBy = new Expression[orderBy.length];
+        for (int i = 0; i < orderBy.length; i++) {
+            q.orderBy[i] = orderBy[i].bind(values);
+        }
+        q.descending = descending;
+        q.limit = limit;
+        q.condLeft = new Expression[condLeft.length];
+        q.condRight = new Expression[condRight.length];
+        for (int i = 0; i < condLeft.length; i++) {
+            q.condLeft[i] = condLeft[i].bind(values);
+            q.condRight[i] = condRight[i].bind(values);
+        }
+        return q;
+    }
+}
@@ -0,0 +1,76 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/* Iterates over the rows of a table one at a time or a page at a time. Each row
+** is a list of Integer, Float or String cells, with NOVALUE and NaN returned
+** as those strings. The table's read lock is taken for each row or page, not
+** for the life of the cursor. */
+public class RowCursor implements Iterator<List<Object>> {
+
+    private Table table;
+    private int next;
+
+    RowCursor(Table table) {
+        this.table = table;
+    }
+
+    /* Returns the column names and types, e.g. "Wins int". */
+    public List<String> getHeader() {
+        List<String> header = new ArrayList<>();
+        for (String name : table.getColNames()) {
+            header.add(table.getColumn(name).getFullName());
+        }
+        return header;
+    }
+
+    @Override
+    public boolean hasNext() {
+        table.readLock().lock();
+        try {
+            return next < table.size();
+        } finally {
+            table.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Object> next() {
+        table.readLock().lock();
+        try {
+            if (next >= table.size()) {
+                throw new NoSuchElementException();
+            }
+            return table.getRow(next++);
+        } finally {
+            table.readLock().unlock();
+        }
+    }
+
+    /* Returns up to 'size' more rows; the list is empty once the cursor is done. */
+    public List<List<Object>> nextPage(int size) {
+        table.readLock().lock();
+        try {
+            List<List<Object>> page = new ArrayList<>(Math.min(size, table.size() - next));
+            while (page.size() < size && next < table.size()) {
+                page.add(table.getRow(next++));
+            }
+            return page;
+        } finally {
+            table.readLock().unlock();
+        }
+    }
+
+    /* Returns the remaining rows as a sequential stream. */
+    public Stream<List<Object>> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(this, table.size() - next,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+}
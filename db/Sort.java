@@ -0,0 +1,320 @@
+package db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/* Orders rows for "order by" and "limit". Rows are sorted as indices into the
+** key columns and never copied. Each key cell is encoded as a long that
+** compares the way the cells do: ints as they are, floats by their bits made
+** sortable, and strings by the rank of their dictionary code. NaN sorts after
+** every number and NOVALUE after everything, for ascending and descending
+** keys alike. Rows with equal keys keep their order.
+**
+** With a limit below the number of rows, the first rows are kept in a heap of
+** 'limit' entries. Otherwise the keys are encoded into arrays and the indices
+** merge sorted, unless that would take more than 'memory' bytes; then sorted
+** runs that fit in memory are spilled to temp files and merged. */
+class Sort {
+
+    /* Compares two rows, or two positions of encoded keys. */
+    private interface Order {
+        int compare(int a, int b);
+    }
+
+    private static final long NAN_KEY = Long.MAX_VALUE - 1;
+    private static final long NOVALUE_KEY = Long.MAX_VALUE;
+    /* Runs shorter than this are sorted by insertion. */
+    private static final int INSERTION_SORT = 16;
+
+    private final Column[] keys;
+    private final boolean[] descending;
+    private final long memory;
+    /* The rank of each dictionary code of a string key, or null. */
+    private final int[][] ranks;
+    private String method = "";
+
+    Sort(Column[] keys, boolean[] descending, long memory) {
+        this.keys = keys;
+        this.descending = descending;
+        this.memory = memory;
+        this.ranks = new int[keys.length][];
+        for (int k = 0; k < keys.length; k++) {
+            if (keys[k] instanceof StringColumn) {
+                ranks[k] = ranks(((StringColumn) keys[k]).getDictionary());
+            }
+        }
+    }
+
+    private static int[] ranks(StringDictionary dict) {
+        Integer[] codes = new Integer[dict.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = i;
+        }
+        Arrays.sort(codes, (a, b) -> dict.decode(a).compareTo(dict.decode(b)));
+        int[] ranks = new int[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            ranks[codes[i]] = i;
+        }
+        return ranks;
+    }
+
+    /* Returns how the last sort ran, for explain. */
+    String method() {
+        return method;
+    }
+
+    private long key(int k, int row) {
+        Column c = keys[k];
+        if (c.isNoValue(row)) {
+            return NOVALUE_KEY;
+        } else if (c.isNaN(row)) {
+            return NAN_KEY;
+        } else if (ranks[k] != null) {
+            return ranks[k][((StringColumn) c).code(row)];
+        } else if (c instanceof FloatColumn) {
+            int bits = Float.floatToIntBits(c.getFloat(row) + 0.0f);
+            return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+        }
+        return c.getInt(row);
+    }
+
+    /* Compares two encoded cells of key 'k'. A descending key reverses the
+    ** order of values only; NaN and NOVALUE stay after them either way. */
+    private int compareKeys(int k, long a, long b) {
+        int cmp = Long.compare(a, b);
+        return (descending[k] && a < NAN_KEY && b < NAN_KEY) ? -cmp : cmp;
+    }
+
+    /* Returns 'rows' in order, only the first 'limit' of them if 'limit' is not
+    ** negative. Throws UncheckedIOException if a spilled run cannot be written
+    ** or read. */
+    int[] sort(int[] rows, int limit) {
+        if (limit >= 0 && limit < rows.length) {
+            method = "top " + limit;
+            return top(rows, limit);
+        }
+        long bytes = (long) rows.length * bytesPerRow();
+        if (bytes <= memory) {
+            method = "in memory";
+            return inMemory(rows, 0, rows.length);
+        }
+        try {
+            return external(rows);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* The bytes an in-memory sort takes per row: the encoded keys, the
+    ** positions and the merge buffer. */
+    private int bytesPerRow() {
+        return keys.length * 8 + 8;
+    }
+
+    /* Keeps the first 'limit' rows in a heap whose root is the last of them. */
+    private int[] top(int[] rows, int limit) {
+        Order order = (a, b) -> {
+            for (int k = 0; k < keys.length; k++) {
+                int cmp = compareKeys(k, key(k, rows[a]), key(k, rows[b]));
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(a, b);
+        };
+        int[] heap = new int[limit];
+        int size = 0;
+        for (int i = 0; i < rows.length && limit > 0; i++) {
+            if (size < limit) {
+                heap[size] = i;
+                for (int c = size++; c > 0 && order.compare(heap[c], heap[(c - 1) / 2]) > 0;
+                        c = (c - 1) / 2) {
+                    swap(heap, c, (c - 1) / 2);
+                }
+            } else if (order.compare(i, heap[0]) < 0) {
+                heap[0] = i;
+                for (int p = 0, c = 1; c < size; p = c, c = 2 * c + 1) {
+                    if (c + 1 < size && order.compare(heap[c + 1], heap[c]) > 0) {
+                        c++;
+                    }
+                    if (order.compare(heap[c], heap[p]) <= 0) {
+                        break;
+                    }
+                    swap(heap, p, c);
+                }
+            }
+        }
+        mergeSort(heap, new int[size], 0, size, order);
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = rows[heap[i]];
+        }
+        return result;
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /* Sorts rows [from, to) of 'rows' with their keys encoded into arrays. */
+    private int[] inMemory(int[] rows, int from, int to) {
+        int n = to - from;
+        long[][] encoded = new long[keys.length][n];
+        for (int k = 0; k < keys.length; k++) {
+            long[] e = encoded[k];
+            for (int i = 0; i < n; i++) {
+                e[i] = key(k, rows[from + i]);
+            }
+        }
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+        mergeSort(positions, new int[n], 0, n, (a, b) -> {
+            for (int k = 0; k < keys.length; k++) {
+                int cmp = compareKeys(k, encoded[k][a], encoded[k][b]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        });
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = rows[from + positions[i]];
+        }
+        return result;
+    }
+
+    /* A stable merge sort of a[from, to), using 'tmp' as the merge buffer. */
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, Order order) {
+        if (to - from <= INSERTION_SORT) {
+            for (int i = from + 1; i < to; i++) {
+                int v = a[i];
+                int j = i - 1;
+                while (j >= from && order.compare(a[j], v) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, order);
+        mergeSort(a, tmp, mid, to, order);
+        if (order.compare(a[mid - 1], a[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            a[k++] = (order.compare(tmp[j], tmp[i]) < 0) ? tmp[j++] : tmp[i++];
+        }
+        System.arraycopy(tmp, i, a, k, mid - i);
+        System.arraycopy(tmp, j, a, k + mid - i, to - j);
+    }
+
+    /* Sorts runs of rows that fit in memory, writes each to a temp file as
+    ** rows and their encoded keys, and merges the files. */
+    private int[] external(int[] rows) throws IOException {
+        int run = (int) Math.max(1, Math.min(rows.length, memory / bytesPerRow()));
+        List<File> files = new ArrayList<>();
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int from = 0; from < rows.length; from += run) {
+                int[] sorted = inMemory(rows, from, Math.min(rows.length, from + run));
+                File f = File.createTempFile("db-sort", ".run");
+                files.add(f);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(f), 1 << 16))) {
+                    for (int row : sorted) {
+                        out.writeInt(row);
+                        for (int k = 0; k < keys.length; k++) {
+                            out.writeLong(key(k, row));
+                        }
+                    }
+                }
+            }
+            method = "external merge of " + files.size() + " runs";
+
+            PriorityQueue<RunReader> heads = new PriorityQueue<>(files.size(), (a, b) -> {
+                for (int k = 0; k < keys.length; k++) {
+                    int cmp = compareKeys(k, a.keys[k], b.keys[k]);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                //Runs hold consecutive rows, so the earlier run holds the earlier row
+                return Integer.compare(a.run, b.run);
+            });
+            for (File f : files) {
+                RunReader r = new RunReader(f, readers.size(), keys.length);
+                readers.add(r);
+                if (r.next()) {
+                    heads.add(r);
+                }
+            }
+            int[] result = new int[rows.length];
+            int n = 0;
+            while (!heads.isEmpty()) {
+                RunReader r = heads.poll();
+                result[n++] = r.row;
+                if (r.next()) {
+                    heads.add(r);
+                }
+            }
+            return result;
+        } finally {
+            for (RunReader r : readers) {
+                r.in.close();
+            }
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    /* Reads the rows of a spilled run back in order. */
+    private static class RunReader {
+        final DataInputStream in;
+        final int run;
+        final long[] keys;
+        int row;
+
+        RunReader(File f, int run, int keys) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            this.run = run;
+            this.keys = new long[keys];
+        }
+
+        /* Reads the next row, returning false at the end of the run. */
+        boolean next() throws IOException {
+            try {
+                row = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int k = 0; k < keys.length; k++) {
+                keys[k] = in.readLong();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package db;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/* Index backed by a balanced search tree, ordered the same way as Condition
+** compares values. Answers ranges (<, >, <=, >=) in logarithmic time plus the
+** size of the answer, as well as == and !=. */
+class SortedIndex extends Index {
+
+    SortedIndex(String name, Column col) {
+        super(name, BTREE, col, new TreeMap<>());
+    }
+
+    @Override
+    boolean supports(String op) {
+        return true;
+    }
+
+    @Override
+    BitSet lookup(String op, Comparable<?> value) {
+        if (op.equals("==") || op.equals("!=")) {
+            return super.lookup(op, value);
+        }
+        BitSet result = new BitSet(col.size());
+        for (Rows rows : range(op, value)) {
+            add(result, rows);
+        }
+        if (op.startsWith(">")) {
+            result.or(col.getNaNs());
+        }
+        return result;
+    }
+
+    /* Returns the buckets of the values satisfying a range comparison. */
+    private Collection<Rows> range(String op, Comparable<?> value) {
+        NavigableMap<Comparable<?>, Rows> tree = (NavigableMap<Comparable<?>, Rows>) map;
+        switch (op) {
+            case "<":
+                return tree.headMap(value, false).values();
+            case "<=":
+                return tree.headMap(value, true).values();
+            case ">":
+                return tree.tailMap(value, false).values();
+            default:
+                return tree.tailMap(value, true).values();
+        }
+    }
+}
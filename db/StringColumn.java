@@ -0,0 +1,159 @@
+package db;
+
+import java.util.Arrays;
+
+/* Column of quoted strings, dictionary encoded: each row holds the int code of
+** its value in a per-column StringDictionary, so repeated values are stored
+** once and equal values have equal codes. Values are only decoded when they
+** are read as strings or rendered. Columns of unknown types also use this
+** storage but skip the quote check, as they did before typed columns existed.
+** A column loaded through the buffer pool reads the codes of its first 'paged'
+** rows from pages, like an IntColumn. */
+class StringColumn extends Column {
+
+    /* Code of the rows that hold no string, such as NOVALUE rows. */
+    private static final int EMPTY = -1;
+
+    private int[] codes;
+    private PagedArray pages;
+    private int paged;
+    private StringDictionary dict;
+    private boolean quoted;
+
+    StringColumn(String name, String type) {
+        super(name, type);
+        this.codes = new int[8];
+        this.dict = new StringDictionary();
+        this.quoted = type.equals("string");
+    }
+
+    /* Uses 'codes' as the storage, holding 'size' values encoded in 'dict'. */
+    void setData(int[] codes, StringDictionary dict, int size) {
+        this.codes = codes;
+        this.dict = dict;
+        this.size = size;
+    }
+
+    /* Uses the codes of 'pages', encoded in 'dict', as the storage. */
+    void setPages(PagedArray pages, StringDictionary dict) {
+        this.pages = pages;
+        this.paged = pages.size();
+        this.dict = dict;
+        this.size = paged;
+    }
+
+    /* Copies every code to 'dest' from 'pos' on. */
+    private void copyTo(int[] dest, int pos) {
+        if (paged > 0) {
+            pages.copyInts(0, paged, dest, pos);
+        }
+        System.arraycopy(codes, 0, dest, pos + paged, size - paged);
+    }
+
+    StringDictionary getDictionary() {
+        return dict;
+    }
+
+    /* Returns the code of row 'row', or -1 for a row without a value. */
+    int code(int row) {
+        return (row < paged) ? pages.getInt(row) : codes[row - paged];
+    }
+
+    private int encode(String item) {
+        int code = dict.lookup(item);
+        if (code >= 0) {
+            return code;
+        } else if (dict.isShared()) {
+            dict = dict.copy();
+        }
+        return dict.encode(item);
+    }
+
+    @Override
+    String set(int row, String item) {
+        if (quoted && !item.contains("\'")) {
+            return "ERROR: Wrong item type in column.";
+        }
+        codes[row - paged] = encode(item);
+        return "";
+    }
+
+    @Override
+    void appendString(String item) {
+        ensureCapacity(size + 1);
+        codes[size++ - paged] = encode(item);
+    }
+
+    @Override
+    void setDefault(int row) {
+        codes[row - paged] = EMPTY;
+    }
+
+    @Override
+    Comparable<?> value(int row) {
+        return getString(row);
+    }
+
+    @Override
+    String format(int row) {
+        return getString(row);
+    }
+
+    @Override
+    String getString(int row) {
+        int code = code(row);
+        return (code == EMPTY) ? "" : dict.decode(code);
+    }
+
+    @Override
+    void ensureCapacity(int capacity) {
+        if (capacity - paged > codes.length) {
+            codes = Arrays.copyOf(codes, grow(codes.length, capacity - paged));
+        }
+    }
+
+    @Override
+    void truncate(int newSize) {
+        super.truncate(newSize);
+        paged = Math.min(paged, size);
+    }
+
+    @Override
+    void appendData(Column other) {
+        StringColumn o = (StringColumn) other;
+        int base = size - paged;
+        o.copyTo(codes, base);
+        if (o.dict.sameCodes(dict) && o.dict.size() <= dict.size()) {
+            return;
+        }
+        int[] map = new int[o.dict.size()];
+        for (int i = 0; i < map.length; i++) {
+            map[i] = encode(o.dict.decode(i));
+        }
+        for (int i = base; i < base + o.size; i++) {
+            int code = codes[i];
+            codes[i] = (code == EMPTY) ? EMPTY : map[code];
+        }
+    }
+
+    @Override
+    Column copyData() {
+        StringColumn c = new StringColumn(getName(), getColType());
+        c.codes = Arrays.copyOf(codes, Math.max(size - paged, 1));
+        c.pages = pages;
+        c.paged = paged;
+        c.dict = dict.share();
+        return c;
+    }
+
+    @Override
+    Column gatherData(int[] rows) {
+        StringColumn c = new StringColumn(getName(), getColType());
+        c.codes = new int[Math.max(rows.length, 1)];
+        for (int i = 0; i < rows.length; i++) {
+            c.codes[i] = code(rows[i]);
+        }
+        c.dict = dict.share();
+        return c;
+    }
+}
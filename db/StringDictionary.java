@@ -0,0 +1,98 @@
+package db;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* The distinct values of a dictionary-encoded string column, each stored once
+** and numbered in order of first appearance. Columns copied from one another
+** share the values one way: the copy gets a read-only view of the codes the
+** dictionary holds at that moment, and the original keeps adding values
+** without copying anything, as the view never reads a code past its size. A
+** column holding a view takes a private copy when it needs a new value. */
+class StringDictionary {
+
+    private String[] values;
+    private int size;
+    /* Shared with the views, which ignore the codes of later values. */
+    private Map<String, Integer> codes;
+    private boolean view;
+
+    StringDictionary() {
+        values = new String[8];
+        codes = new ConcurrentHashMap<>();
+    }
+
+    private StringDictionary(String[] values, int size, Map<String, Integer> codes) {
+        this.values = values;
+        this.size = size;
+        this.codes = codes;
+    }
+
+    /* Returns the code of 'value', or -1 if it is not in the dictionary. */
+    int lookup(String value) {
+        Integer code = codes.get(value);
+        return (code == null || code >= size) ? -1 : code;
+    }
+
+    /* Returns the code of 'value', adding it if needed. Must not be called on a
+    ** view. */
+    int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        codes.put(value, size);
+        return size++;
+    }
+
+    String decode(int code) {
+        return values[code];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /* Returns a read-only view of the values held now, for a copied column. */
+    StringDictionary share() {
+        StringDictionary d = new StringDictionary(values, size, codes);
+        d.view = true;
+        return d;
+    }
+
+    boolean isShared() {
+        return view;
+    }
+
+    /* Returns whether a value has the same code in this dictionary and in
+    ** 'other', for every code both hold. */
+    boolean sameCodes(StringDictionary other) {
+        return codes == other.codes;
+    }
+
+    /* Returns a private dictionary with the same codes. */
+    StringDictionary copy() {
+        StringDictionary d = new StringDictionary();
+        d.values = Arrays.copyOf(values, Math.max(size, 8));
+        d.size = size;
+        for (int i = 0; i < size; i++) {
+            d.codes.put(values[i], i);
+        }
+        return d;
+    }
+
+    /* Returns, for each code of 'other', the code of the same value in this
+    ** dictionary, or -1 where this dictionary does not hold the value. */
+    int[] recode(StringDictionary other) {
+        int[] map = new int[other.size];
+        for (int i = 0; i < other.size; i++) {
+            map[i] = lookup(other.values[i]);
+        }
+        return map;
+    }
+}
@@ -1,15 +1,41 @@
 package db;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/* A table of named columns. Tables in a Database are guarded by their own
+** read/write lock: statements that only read a table hold the read lock and
+** statements that change its rows hold the write lock. Tables made by a query
+** are private to it and need no locking. */
 public class Table {
 
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    /* The rows rendered at a time by 'write'. */
+    private static final int WRITE_BATCH = 1024;
+
     private Map<String, Column> colNames;
+    private List<Index> indexes = new CopyOnWriteArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final long id = NEXT_ID.getAndIncrement();
+    /* The file a paged table reads its values from, or null. */
+    private Closeable storage;
+    /* The number of writes streaming the table, which keep 'storage' open. */
+    private int pins;
+    private boolean closed;
 
     public Table(Column[] cols) {
         colNames = new LinkedHashMap<>();
@@ -18,46 +44,146 @@ public class Table {
         }
     }
 
-    String addRow(List row) {
-        Iterator c = colNames.values().iterator();
-        String result = "";
-        int index = row.size();
-        if (index != getNumCols()) {
-            return "ERROR: incorrect row size.";
+    /* Ties the file the table's columns are paged from to the table, to be
+    ** closed with it. */
+    void setStorage(Closeable storage) {
+        this.storage = storage;
+    }
+
+    /* Closes the file the table is paged from, once no statement is reading
+    ** the table and no write is streaming it. The table must no longer be
+    ** reachable from its database. */
+    void close() {
+        if (storage == null) {
+            return;
         }
-        for (int i = 0; i < index; i++) {
-            result = ((Column) c.next()).addLast(String.valueOf(row.get(i)));
-            if (result.contains("ERROR:")) {
-                if (i == 0) {
-                    return result;
-                } else {
-                    Iterator c2 = colNames.values().iterator();
-                    for (int j = 0; j < i; j++) {
-                        Column col = (Column) c2.next();
-                        col.remove(col.size() - 1);
-                        return result;
+        writeLock().lock();
+        try {
+            synchronized (this) {
+                closed = true;
+                if (pins == 0) {
+                    closeStorage();
+                }
+            }
+        } finally {
+            writeLock().unlock();
+        }
+    }
+
+    private synchronized void pin() {
+        pins++;
+    }
+
+    private synchronized void unpin() {
+        if (--pins == 0 && closed) {
+            closeStorage();
+        }
+    }
+
+    private void closeStorage() {
+        try {
+            storage.close();
+        } catch (IOException e) {
+            //Nothing was written through it, so there is nothing to lose
+        }
+    }
+
+    String addRow(List<?> row) {
+        return addRows(Collections.<List<?>>singletonList(row));
+    }
+
+    /* Appends a batch of rows, whose cells are Integers, Floats, strings in the
+    ** form of a .tbl file, or null for NOVALUE. Every column grows once for the
+    ** whole batch. If any row is bad, nothing is appended and the error for the
+    ** first bad row is returned. */
+    String addRows(List<? extends List<?>> rows) {
+        Column[] cols = colNames.values().toArray(new Column[0]);
+        for (List<?> row : rows) {
+            if (row.size() != cols.length) {
+                return "ERROR: incorrect row size.";
+            }
+        }
+        int before = size();
+        for (Column c : cols) {
+            c.ensureCapacity(before + rows.size());
+        }
+        for (List<?> row : rows) {
+            for (int i = 0; i < cols.length; i++) {
+                String result = cols[i].appendValue(row.get(i));
+                if (result.contains("ERROR:")) {
+                    for (Column c : cols) {
+                        c.truncate(before);
                     }
+                    return result;
                 }
             }
         }
-        return result;
+        for (Index idx : indexes) {
+            for (int r = before; r < size(); r++) {
+                idx.insert(r);
+            }
+        }
+        return "";
     }
 
-    public List getRow(int index) {
-        Iterator c = colNames.keySet().iterator();
-        List row = new ArrayList();
+    public List<Object> getRow(int index) {
+        Iterator<String> c = colNames.keySet().iterator();
+        List<Object> row = new ArrayList<>();
         while (c.hasNext()) {
-            row.add(getColumn((String) c.next()).getItem(index));
+            row.add(getColumn(c.next()).getItem(index));
         }
         return row;
     }
 
-    void removeRow(int r) {
-        Iterator c = colNames.values().iterator();
-        int s = getRow(r).size();
-        for (int i = 0; i < s; i++) {
-            ((Column) c.next()).remove(r);
+    Lock readLock() {
+        return lock.readLock();
+    }
+
+    Lock writeLock() {
+        return lock.writeLock();
+    }
+
+    /* Returns a number unique to this table, giving the order in which the locks
+    ** of several tables are taken so that readers cannot deadlock. */
+    long getId() {
+        return id;
+    }
+
+    /* Builds 'index' over the current rows and keeps it up to date from now on. */
+    void addIndex(Index index) {
+        index.build();
+        indexes.add(index);
+    }
+
+    void removeIndex(Index index) {
+        indexes.remove(index);
+    }
+
+    List<Index> getIndexes() {
+        return indexes;
+    }
+
+    /* Returns an index on column 'c' that can answer comparisons with 'op',
+    ** preferring a hash index for equality, or null if there is none. */
+    Index findIndex(Column c, String op) {
+        Index found = null;
+        for (Index index : indexes) {
+            if (index.getColumn() == c && index.supports(op)
+                    && (found == null || index instanceof HashIndex)) {
+                found = index;
+            }
         }
+        return found;
+    }
+
+    /* Returns a new table holding copies of the given rows, in order. */
+    Table gather(int[] rows) {
+        Column[] cols = new Column[getNumCols()];
+        int i = 0;
+        for (Column c : colNames.values()) {
+            cols[i++] = c.gather(rows);
+        }
+        return new Table(cols);
     }
 
     Set<String> getColNames() {
@@ -68,6 +194,20 @@ public class Table {
         return colNames.get(name);
     }
 
+    /* Returns the column whose name matches ignoring case, or null. */
+    Column findColumn(String name) {
+        Column c = colNames.get(name);
+        if (c != null) {
+            return c;
+        }
+        for (String n : colNames.keySet()) {
+            if (name.equalsIgnoreCase(n)) {
+                return colNames.get(n);
+            }
+        }
+        return null;
+    }
+
     int size() {
         return colNames.values().iterator().next().size();
     }
@@ -76,27 +216,65 @@ public class Table {
         return colNames.keySet().size();
     }
 
-    @Override
-    public String toString() {
-        StringBuilder s = new StringBuilder();
-        for (Column c : colNames.values()) {
-            s.append(c.getFullName() + ",");
-        }
-        s.deleteCharAt(s.length() - 1);
-        s.append("\n");
-
-        int colLength = ((colNames.values().iterator().next())).size();
-        for (int i = 0; i < colLength; i++) {
-            for (Column c : colNames.values()) {
-                if (c.getColType().equals("float") && !c.getItem(i).equals("NOVALUE")
-                        && !c.getItem(i).equals("NaN")) {
-                    s.append(String.format("%.3f", c.getItem(i)) + ",");
-                } else {
-                    s.append(c.getItem(i) + ",");
+    /* Renders the header and the rows the table has when the write starts to
+    ** 'out'. Rows are rendered WRITE_BATCH at a time under the read lock and
+    ** written with the lock released, so output of any size is written in
+    ** bounded memory and a slow reader of 'out' does not hold off writers.
+    ** Rows are only ever appended, so the rows written are the table as it was
+    ** when the write started. The file a paged table reads from stays open
+    ** until the write ends, even if the table is dropped meanwhile. */
+    void write(Writer out) throws IOException {
+        Column[] cols;
+        int rows;
+        StringBuilder batch = new StringBuilder();
+        lock.readLock().lock();
+        try {
+            cols = colNames.values().toArray(new Column[0]);
+            rows = size();
+            for (int j = 0; j < cols.length; j++) {
+                if (j > 0) {
+                    batch.append(',');
                 }
+                batch.append(cols[j].getFullName());
             }
-            s.deleteCharAt(s.length() - 1);
-            s.append("\n");
+            batch.append('\n');
+            pin();
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            out.append(batch);
+            for (int from = 0; from < rows; from += WRITE_BATCH) {
+                int to = Math.min(rows, from + WRITE_BATCH);
+                batch.setLength(0);
+                lock.readLock().lock();
+                try {
+                    for (int i = from; i < to; i++) {
+                        for (int j = 0; j < cols.length; j++) {
+                            if (j > 0) {
+                                batch.append(',');
+                            }
+                            batch.append(cols[j].itemString(i));
+                        }
+                        batch.append('\n');
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                out.append(batch);
+            }
+        } finally {
+            unpin();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter s = new StringWriter();
+        try {
+            write(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         return s.toString();
     }
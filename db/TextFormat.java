@@ -0,0 +1,223 @@
+package db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/* Reader for text .tbl files. The body of the file is split into byte ranges
+** aligned to line boundaries, and the ranges are parsed in parallel into
+** per-chunk columns, which are then concatenated in file order. Small files
+** are parsed as a single chunk on the calling thread. */
+class TextFormat {
+
+    static final String EXTENSION = ".tbl";
+
+    /* Files smaller than this are not worth splitting. */
+    private static final long MIN_PARALLEL_SIZE = 1 << 20;
+    /* Upper bound on the bytes parsed by one chunk, which is mapped at once. */
+    private static final long MAX_CHUNK_SIZE = 1 << 30;
+
+    /* The loaded table and the first error met while loading it, if any.
+    ** Malformed rows are skipped, so the table holds every valid row. */
+    static class Result {
+        Table table;
+        String error = "";
+    }
+
+    private TextFormat() {
+    }
+
+    /* Reads 'file' using up to 'parallelism' threads. Throws
+    ** IllegalArgumentException with an error message if the header is bad. */
+    static Result read(File file, int parallelism) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            long bodyStart = nextLine(ch, 0, size);
+            if (bodyStart == 0) {
+                throw new IllegalArgumentException("ERROR: Malformed");
+            }
+            String header = decode(map(ch, 0, bodyStart));
+            String[] splitLine = header.split(",");
+            String[] names = new String[splitLine.length];
+            String[] types = new String[splitLine.length];
+            for (int i = 0; i < splitLine.length; i++) {
+                String[] nameAndType = splitLine[i].split(" ");
+                if (nameAndType.length != 2) {
+                    throw new IllegalArgumentException("ERROR: Malformed table header");
+                }
+                names[i] = nameAndType[0];
+                types[i] = nameAndType[1];
+            }
+
+            long body = size - bodyStart;
+            int chunks = 1;
+            if (body >= MIN_PARALLEL_SIZE) {
+                chunks = (int) Math.max(parallelism, (body + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+            }
+            long[] bounds = new long[chunks + 1];
+            bounds[0] = bodyStart;
+            for (int i = 1; i < chunks; i++) {
+                long start = bodyStart + body * i / chunks;
+                bounds[i] = Math.max(bounds[i - 1], nextLine(ch, start, size));
+            }
+            bounds[chunks] = size;
+
+            List<Chunk> parsed = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                parsed.add(new Chunk(map(ch, bounds[i], bounds[i + 1]), names, types));
+            }
+            if (chunks == 1) {
+                parsed.get(0).call();
+            } else {
+                try {
+                    for (Future<Chunk> f : ForkJoinPool.commonPool().invokeAll(parsed)) {
+                        f.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while loading " + file);
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+
+            Result result = new Result();
+            Column[] cols = parsed.get(0).cols;
+            int line = 1;
+            for (int i = 0; i < chunks; i++) {
+                Chunk c = parsed.get(i);
+                if (i > 0) {
+                    for (int j = 0; j < cols.length; j++) {
+                        cols[j].append(c.cols[j]);
+                    }
+                }
+                if (result.error.isEmpty() && !c.error.isEmpty()) {
+                    //Errors are sentences; the line goes before the full stop
+                    String error = c.error.endsWith(".")
+                            ? c.error.substring(0, c.error.length() - 1) : c.error;
+                    result.error = error + " at line " + (line + c.errorLine) + ".";
+                }
+                line += c.lines;
+            }
+            result.table = new Table(cols);
+            return result;
+        }
+    }
+
+    /* Returns the position just after the first newline at or after 'from'. */
+    private static long nextLine(FileChannel ch, long from, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long pos = from;
+        while (pos < size) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static MappedByteBuffer map(FileChannel ch, long start, long end) throws IOException {
+        return ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    private static String decode(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return strip(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static String strip(String line) {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    /* Parses the lines of one byte range into its own columns. */
+    private static class Chunk implements Callable<Chunk> {
+        private ByteBuffer buf;
+        private Column[] cols;
+        private int lines;
+        private String error = "";
+        private int errorLine;
+
+        Chunk(ByteBuffer buf, String[] names, String[] types) {
+            this.buf = buf;
+            this.cols = new Column[names.length];
+            for (int i = 0; i < names.length; i++) {
+                cols[i] = Column.create(names[i], types[i]);
+            }
+        }
+
+        @Override
+        public Chunk call() {
+            byte[] line = new byte[256];
+            int length = 0;
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n') {
+                    addLine(new String(line, 0, length, StandardCharsets.UTF_8));
+                    length = 0;
+                } else {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+            if (length > 0) {
+                addLine(new String(line, 0, length, StandardCharsets.UTF_8));
+            }
+            buf = null;
+            return this;
+        }
+
+        private void addLine(String text) {
+            lines++;
+            text = strip(text);
+            if (text.isEmpty()) {
+                return;
+            }
+            String[] splitLine = text.split(",");
+            String result;
+            if (splitLine.length != cols.length) {
+                result = "ERROR: incorrect row size.";
+            } else {
+                int rows = cols[0].size();
+                result = "";
+                for (int i = 0; i < cols.length && result.isEmpty(); i++) {
+                    result = cols[i].addLast(splitLine[i]);
+                }
+                if (!result.isEmpty()) {
+                    for (Column c : cols) {
+                        c.truncate(rows);
+                    }
+                }
+            }
+            if (!result.isEmpty() && error.isEmpty()) {
+                error = result;
+                errorLine = lines;
+            }
+        }
+    }
+}
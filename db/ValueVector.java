@@ -0,0 +1,28 @@
+package db;
+
+/* The values of an expression over one batch of rows, the unit that filters
+** and projections work on. A batch holds up to SIZE rows, as many as a zone
+** map block, named by a selection vector of row numbers in increasing order.
+** Values go in 'ints' or 'floats' by the expression's type, and their states
+** in 'states'; a clean vector holds only values and leaves 'states' unset. */
+final class ValueVector {
+
+    static final int SIZE = ZoneMap.BLOCK;
+
+    final int[] ints = new int[SIZE];
+    final float[] floats = new float[SIZE];
+    final byte[] states = new byte[SIZE];
+    boolean clean;
+
+    /* Returns the state of value 'i'. */
+    int state(int i) {
+        return clean ? Evaluator.VALUE : states[i];
+    }
+
+    /* Copies the first 'n' ints to 'floats', for an int operand of a float operation. */
+    void toFloats(int n) {
+        for (int i = 0; i < n; i++) {
+            floats[i] = ints[i];
+        }
+    }
+}
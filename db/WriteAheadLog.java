@@ -0,0 +1,247 @@
+package db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/* Append-only log of the statements that changed a database. Each record is
+**
+**   length, CRC32 of type and payload, type, payload (UTF-8)
+**
+** and is either a QUERY, the text of a statement, a TABLE, "name\npath" of a
+** table saved by a checkpoint, or a LOAD, "name\npath" of a loaded table. A
+** record only counts once it is complete and its checksum matches, so a torn
+** write at the end is dropped on replay.
+**
+** With group commit, writers append their records and then wait in sync; one
+** of them forces the file while the others queue up, and the next force covers
+** everything appended in the meantime. Without it, every append is forced on
+** its own. */
+class WriteAheadLog implements Closeable {
+
+    static final byte QUERY = 'Q';
+    static final byte TABLE = 'T';
+    static final byte LOAD = 'L';
+
+    private static final int HEADER = 9;
+
+    interface Replayer {
+        void replay(byte type, String payload);
+    }
+
+    private final File file;
+    private final boolean groupCommit;
+    private volatile FileChannel channel;
+    /* Log sequence numbers count the bytes ever appended, so they keep growing
+    ** when a checkpoint rewrites the file. */
+    private volatile long written;
+
+    private final Object syncLock = new Object();
+    private long synced;
+    private boolean syncing;
+
+    private WriteAheadLog(File file, boolean groupCommit) {
+        this.file = file;
+        this.groupCommit = groupCommit;
+    }
+
+    /* Opens the log at 'file', creating it if needed, and passes every complete
+    ** record in it to 'replayer' in order before anything can be appended. */
+    static WriteAheadLog open(File file, boolean groupCommit, Replayer replayer)
+            throws IOException {
+        WriteAheadLog log = new WriteAheadLog(file, groupCommit);
+        log.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end;
+        try {
+            end = log.replay(replayer);
+            log.channel.truncate(end);
+            log.channel.position(end);
+        } catch (IOException | RuntimeException e) {
+            log.channel.close();
+            throw e;
+        }
+        log.written = end;
+        log.synced = end;
+        return log;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /* Replays the records of the file, returning where the last complete one ends. */
+    private long replay(Replayer replayer) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long pos = 0;
+        while (pos + HEADER <= size) {
+            header.clear();
+            channel.read(header, pos);
+            int length = header.getInt(0);
+            int crc = header.getInt(4);
+            if (length < 0 || pos + HEADER + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, pos + HEADER);
+            if (checksum(header.get(8), payload.array()) != crc) {
+                break;
+            }
+            replayer.replay(header.get(8), new String(payload.array(), StandardCharsets.UTF_8));
+            pos += HEADER + length;
+        }
+        return pos;
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer record(byte type, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + payload.length);
+        buf.putInt(payload.length).putInt(checksum(type, payload)).put(type).put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /* Appends a record and returns its log sequence number, to be passed to
+    ** sync. Without group commit the record is durable on return. */
+    synchronized long append(byte type, String payload) throws IOException {
+        ByteBuffer buf = record(type, payload);
+        int length = buf.remaining();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        //Only a complete record counts, so a concurrent force never claims
+        //to cover one that is still being written
+        written += length;
+        if (!groupCommit) {
+            channel.force(false);
+            synchronized (syncLock) {
+                synced = written;
+            }
+        }
+        return written;
+    }
+
+    /* Waits until every record up to log sequence number 'lsn' is on disk. */
+    void sync(long lsn) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (synced < lsn && syncing) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the log");
+                    }
+                }
+                if (synced >= lsn) {
+                    return;
+                }
+                syncing = true;
+            }
+            long target = written;
+            boolean forced = false;
+            try {
+                channel.force(false);
+                forced = true;
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (forced) {
+                        synced = Math.max(synced, target);
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /* Waits for a running force to finish and keeps others from starting. */
+    private void holdForces() throws IOException {
+        synchronized (syncLock) {
+            while (syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log");
+                }
+            }
+            syncing = true;
+        }
+    }
+
+    private void releaseForces() {
+        synchronized (syncLock) {
+            syncing = false;
+            syncLock.notifyAll();
+        }
+    }
+
+    /* Replaces the whole log with 'records', given as pairs of a type and its
+    ** payload. The new log is written and forced to a temporary file that is
+    ** then renamed over the old one, so a crash leaves one of the two intact. */
+    synchronized void rewrite(List<Object[]> records) throws IOException {
+        holdForces();
+        try {
+            replace(records);
+        } finally {
+            releaseForces();
+        }
+    }
+
+    private void replace(List<Object[]> records) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Object[] r : records) {
+                ByteBuffer buf = record((Byte) r[0], (String) r[1]);
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        //Every record appended so far is now covered by the checkpoint
+        synchronized (syncLock) {
+            synced = written;
+        }
+    }
+
+    /* Forces and closes the log once no force is running. Records appended
+    ** before it count as synced, so writers still waiting in sync return. */
+    @Override
+    public synchronized void close() throws IOException {
+        holdForces();
+        try {
+            channel.force(false);
+            channel.close();
+            synchronized (syncLock) {
+                synced = written;
+            }
+        } finally {
+            releaseForces();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package db;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Per-block summaries ("zone maps") of a numeric column. The rows are split
+** into blocks of BLOCK rows, and each block records the smallest and largest
+** value it holds and how many of its rows are values, NOVALUE or NaN, so a
+** scan can skip every block in which no row can satisfy a comparison. Bounds
+** are kept as doubles, which hold every int and float exactly. */
+class ZoneMap {
+
+    static final int SHIFT = 10;
+    static final int BLOCK = 1 << SHIFT;
+
+    private double[] min;
+    private double[] max;
+    private int[] values;
+    private int[] noValues;
+    private int[] nans;
+    private int blocks;
+
+    ZoneMap() {
+        this(4);
+    }
+
+    private ZoneMap(int capacity) {
+        min = new double[capacity];
+        max = new double[capacity];
+        values = new int[capacity];
+        noValues = new int[capacity];
+        nans = new int[capacity];
+    }
+
+    int blocks() {
+        return blocks;
+    }
+
+    /* Adds row 'row' of 'c' to the summary. Rows must be added in order, each
+    ** one directly after the last row summarized. */
+    void update(Column c, int row) {
+        int b = row >> SHIFT;
+        if ((row & (BLOCK - 1)) == 0) {
+            if (b == min.length) {
+                int capacity = b * 2;
+                min = Arrays.copyOf(min, capacity);
+                max = Arrays.copyOf(max, capacity);
+                values = Arrays.copyOf(values, capacity);
+                noValues = Arrays.copyOf(noValues, capacity);
+                nans = Arrays.copyOf(nans, capacity);
+            }
+            values[b] = 0;
+            noValues[b] = 0;
+            nans[b] = 0;
+            blocks = b + 1;
+        }
+        if (c.isNoValue(row)) {
+            noValues[b]++;
+        } else if (c.isNaN(row)) {
+            nans[b]++;
+        } else {
+            double v = c.number(row);
+            if (values[b] == 0 || Double.compare(v, min[b]) < 0) {
+                min[b] = v;
+            }
+            if (values[b] == 0 || Double.compare(v, max[b]) > 0) {
+                max[b] = v;
+            }
+            values[b]++;
+        }
+    }
+
+    /* Summarizes the rows of 'c' again from 'row' on, after they changed. */
+    void rebuild(Column c, int row) {
+        int b = row >> SHIFT;
+        blocks = Math.min(blocks, b);
+        for (int r = b << SHIFT; r < c.size(); r++) {
+            update(c, r);
+        }
+    }
+
+    /* Returns whether some row of block 'b' may satisfy "cell op v", using the
+    ** rules of Condition. When 'asFloat' is set the comparison is done on float
+    ** values, as it is between an int column and a float. */
+    boolean mayMatch(int b, String op, double v, boolean asFloat) {
+        if (b >= blocks) {
+            return true;
+        } else if (nans[b] > 0 && (op.startsWith(">") || op.equals("!="))) {
+            return true;
+        } else if (values[b] == 0) {
+            return false;
+        }
+        double lo = min[b];
+        double hi = max[b];
+        if (asFloat) {
+            lo = (float) lo;
+            hi = (float) hi;
+            v = (float) v;
+        }
+        int low = Double.compare(lo, v);
+        int high = Double.compare(hi, v);
+        switch (op) {
+            case "<":
+                return low < 0;
+            case "<=":
+                return low <= 0;
+            case ">":
+                return high > 0;
+            case ">=":
+                return high >= 0;
+            case "==":
+                return low <= 0 && high >= 0;
+            default:
+                return low != 0 || high != 0;
+        }
+    }
+
+    ZoneMap copy() {
+        ZoneMap z = new ZoneMap(Math.max(blocks, 4));
+        System.arraycopy(min, 0, z.min, 0, blocks);
+        System.arraycopy(max, 0, z.max, 0, blocks);
+        System.arraycopy(values, 0, z.values, 0, blocks);
+        System.arraycopy(noValues, 0, z.noValues, 0, blocks);
+        System.arraycopy(nans, 0, z.nans, 0, blocks);
+        z.blocks = blocks;
+        return z;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(blocks);
+        for (int b = 0; b < blocks; b++) {
+            out.writeDouble(min[b]);
+            out.writeDouble(max[b]);
+            out.writeInt(values[b]);
+            out.writeInt(noValues[b]);
+            out.writeInt(nans[b]);
+        }
+    }
+
+    /* Reads a zone map written by write, throwing BufferUnderflowException if
+    ** 'buf' ends first. */
+    static ZoneMap read(ByteBuffer buf) {
+        int blocks = buf.getInt();
+        if (blocks < 0 || blocks > buf.remaining() / 28) {
+            throw new BufferUnderflowException();
+        }
+        ZoneMap z = new ZoneMap(Math.max(blocks, 4));
+        for (int b = 0; b < blocks; b++) {
+            z.min[b] = buf.getDouble();
+            z.max[b] = buf.getDouble();
+            z.values[b] = buf.getInt();
+            z.noValues[b] = buf.getInt();
+            z.nans[b] = buf.getInt();
+        }
+        z.blocks = blocks;
+        return z;
+    }
+}
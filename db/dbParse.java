@@ -2,6 +2,7 @@ package db;
 
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -12,24 +13,32 @@ public class dbParse {
 
     // Stage 1 syntax, contains the command name.
     private static final Pattern CREATE_CMD = Pattern.compile("create table " + REST),
+            CREATE_INDEX_CMD = Pattern.compile("create index " + REST),
+            DROP_INDEX_CMD = Pattern.compile("drop index " + REST),
             LOAD_CMD = Pattern.compile("load " + REST),
             STORE_CMD = Pattern.compile("store " + REST),
             DROP_CMD = Pattern.compile("drop table " + REST),
             INSERT_CMD = Pattern.compile("insert into " + REST),
             PRINT_CMD = Pattern.compile("print " + REST),
-            SELECT_CMD = Pattern.compile("select " + REST);
+            SELECT_CMD = Pattern.compile("select " + REST),
+            EXPLAIN_CMD = Pattern.compile("explain (analyze )?select " + REST),
+            SHOW_STATS_CMD = Pattern.compile("show stats");
 
     // Stage 2 syntax, contains the clauses of commands.
     private static final Pattern CREATE_NEW = Pattern.compile("(\\S+)\\s+\\((\\S+\\s+\\S+\\s*" +
             "(?:,\\s*\\S+\\s+\\S+\\s*)*)\\)"),
             SELECT_CLS = Pattern.compile("([^,]+?(?:,[^,]+?)*)\\s+from\\s+" +
                     "(\\S+\\s*(?:,\\s*\\S+\\s*)*)(?:\\s+where\\s+" +
-                    "([\\w\\s+\\-*/'<>=!]+?(?:\\s+and\\s+" +
-                    "[\\w\\s+\\-*/'<>=!]+?)*))?"),
+                    "([\\w\\s+\\-*/'<>=!.()?]+?(?:\\s+and\\s+" +
+                    "[\\w\\s+\\-*/'<>=!.()?]+?)*))?" +
+                    "(?:\\s+group\\s+by\\s+([\\w\\s,+\\-*/'.()?]+?))?" +
+                    "(?:\\s+order\\s+by\\s+([\\w\\s,+\\-*/'.()?]+?))?" +
+                    "(?:\\s+limit\\s+(\\d+))?"),
+            INDEX_CLS = Pattern.compile("(\\S+)\\s+on\\s+([^\\s(]+)\\s*\\(\\s*(\\S+?)\\s*\\)" +
+                    "(?:\\s+using\\s+(hash|btree))?"),
             CREATE_SEL = Pattern.compile("(\\S+)\\s+as select\\s+" +
                     SELECT_CLS.pattern()),
-            INSERT_CLS = Pattern.compile("(\\S+)\\s+values\\s+(.+?" +
-                    "\\s*(?:,\\s*.+?\\s*)*)");
+            INSERT_CLS = Pattern.compile("(\\S+)\\s+values\\s+(.+)");
 
     public static String parse(Database d, String[] args) {
         if (args.length != 1) {
@@ -40,29 +49,155 @@ public class dbParse {
     }
 
     private static String eval(Database d, String query) {
+        return d.execute(compile(query), new String[0]);
+    }
+
+    /* Parses a query into a plan that can be executed repeatedly. Values written
+    ** as '?' are left as parameters of the plan. */
+    static Plan compile(String query) {
+        return compileStatement(query).setText(query).setCommand(Metrics.command(query));
+    }
+
+    private static Plan compileStatement(String query) {
         Matcher m;
         if ((m = CREATE_CMD.matcher(query)).matches()) {
-            return createTable(d, m.group(1));
+            return createTable(m.group(1)).mutates();
+        } else if ((m = CREATE_INDEX_CMD.matcher(query)).matches()) {
+            return createIndex(m.group(1)).mutates();
+        } else if ((m = DROP_INDEX_CMD.matcher(query)).matches()) {
+            String name = m.group(1);
+            return Plan.of(0, (d, p) -> d.dropIndex(name)).mutates();
         } else if ((m = LOAD_CMD.matcher(query)).matches()) {
-            return loadTable(d, m.group(1));
+            String name = m.group(1);
+            return Plan.of(0, (d, p) -> loadTable(d, name)).logsItself();
         } else if ((m = STORE_CMD.matcher(query)).matches()) {
-            return storeTable(d, m.group(1));
+            String[] nameAndFormat = m.group(1).split("\\s+as\\s+");
+            String name = nameAndFormat[0];
+            String format = (nameAndFormat.length > 1) ? nameAndFormat[1] : "text";
+            return Plan.of(0, (d, p) -> storeTable(d, name, format));
         } else if ((m = DROP_CMD.matcher(query)).matches()) {
-            return dropTable(d, m.group(1));
+            String name = m.group(1);
+            return Plan.of(0, (d, p) -> dropTable(d, name)).mutates();
         } else if ((m = INSERT_CMD.matcher(query)).matches()) {
-            return insertRow(d, m.group(1));
+            return insertRow(m.group(1)).logsItself();
         } else if ((m = PRINT_CMD.matcher(query)).matches()) {
-            return printTable(d, m.group(1));
+            String name = m.group(1);
+            return Plan.ofTable(0, (d, p) -> d.getTable(name), "ERROR: Table does not exist.");
         } else if ((m = SELECT_CMD.matcher(query)).matches()) {
-            return select(d, m.group(1));
+            return select(m.group(1));
+        } else if (SHOW_STATS_CMD.matcher(query).matches()) {
+            return Plan.of(0, (d, p) -> d.stats());
+        } else if ((m = EXPLAIN_CMD.matcher(query)).matches()) {
+            return explain(m.group(2), m.group(1) != null);
         } else {
-            return ("ERROR: Malformed query: " + query + "\n");
+            return Plan.error("ERROR: Malformed query: " + query + "\n");
+        }
+    }
+
+    /* Returns 'query' with whitespace outside of quotes collapsed. Unless
+    ** 'literals' is null, the values of an insert are replaced by '?' and added
+    ** to it, so inserts of the same shape share one cached plan. */
+    static String normalize(String query, List<String> literals) {
+        StringBuilder s = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (!quoted && Character.isWhitespace(c)) {
+                if (s.length() > 0 && s.charAt(s.length() - 1) != ' ') {
+                    s.append(' ');
+                }
+            } else {
+                s.append(c);
+            }
+        }
+        String normalized = s.toString().trim();
+
+        int values = normalized.indexOf(" values ");
+        if (literals == null || !normalized.startsWith("insert into ") || values < 0) {
+            return normalized;
+        }
+        String list = normalized.substring(values + 8);
+        List<String> rows = list.startsWith("(") ? splitRows(list)
+                : Collections.singletonList(list);
+        if (rows == null) {
+            return normalized;
+        }
+        StringBuilder key = new StringBuilder(normalized.substring(0, values + 8));
+        for (String row : rows) {
+            key.append(list.startsWith("(") ? "(" : "");
+            for (String v : splitValues(row)) {
+                literals.add(v);
+                key.append("?,");
+            }
+            key.deleteCharAt(key.length() - 1);
+            key.append(list.startsWith("(") ? "),": ",");
+        }
+        key.deleteCharAt(key.length() - 1);
+        return key.toString();
+    }
+
+    /* Splits "(a,b),(c,d)" into the insides of its parenthesized rows, ignoring
+    ** parentheses inside quotes. Returns null if the list is malformed. */
+    private static List<String> splitRows(String list) {
+        List<String> rows = new ArrayList<>();
+        boolean quoted = false;
+        boolean expectRow = true;
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (quoted || depth > 1 && c != '(' && c != ')') {
+                continue;
+            } else if (c == '(') {
+                if (depth++ == 0) {
+                    if (!expectRow) {
+                        return null;
+                    }
+                    start = i + 1;
+                }
+            } else if (c == ')') {
+                if (depth == 0) {
+                    return null;
+                } else if (--depth == 0) {
+                    rows.add(list.substring(start, i));
+                    expectRow = false;
+                }
+            } else if (depth == 0) {
+                if (c == ',' && !expectRow) {
+                    expectRow = true;
+                } else if (!Character.isWhitespace(c)) {
+                    return null;
+                }
+            }
+        }
+        return (quoted || depth != 0 || expectRow) ? null : rows;
+    }
+
+    /* Splits a list of values on the commas that are outside of quotes. */
+    private static List<String> splitValues(String list) {
+        List<String> values = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                values.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
         }
+        values.add(list.substring(start).trim());
+        return values;
     }
 
-    private static String createTable(Database d, String expr) {
+    private static Plan createTable(String expr) {
         Matcher m;
-        String result;
         if ((m = CREATE_NEW.matcher(expr)).matches()) {
             int len = (m.group(2).split(COMMA)).length;
             String[] names = new String[len];
@@ -72,20 +207,40 @@ public class dbParse {
                 names[i] = temp[0];
                 types[i] = temp[1];
             }
-            result = createNewTable(m.group(1), names, types, d);
+            String name = m.group(1);
+            return Plan.of(0, (d, p) -> createNewTable(name, names, types, d));
         } else if ((m = CREATE_SEL.matcher(expr)).matches()) {
-            result = createSelectedTable(m.group(1), m.group(2), m.group(3), m.group(4), d);
+            String name = m.group(1);
+            Query q;
+            try {
+                q = Query.parse(m.group(2), m.group(3), m.group(4), m.group(5), m.group(6),
+                        m.group(7));
+            } catch (IllegalArgumentException e) {
+                return Plan.error("ERROR: Bad format/typing");
+            }
+            return Plan.of(q.params, (d, p) -> createSelectedTable(name, bind(q, p), d));
         } else {
-            result = "ERROR: Malformed create: " + expr;
+            return Plan.error("ERROR: Malformed create: " + expr);
+        }
+    }
+
+    private static Plan createIndex(String expr) {
+        Matcher m = INDEX_CLS.matcher(expr);
+        if (!m.matches()) {
+            return Plan.error("ERROR: Malformed create index: " + expr);
         }
-        return result;
+        String name = m.group(1);
+        String table = m.group(2);
+        String column = m.group(3);
+        String kind = (m.group(4) == null) ? Index.HASH : m.group(4);
+        return Plan.of(0, (d, p) -> d.createIndex(name, table, column, kind));
     }
 
     private static String createNewTable(String name, String[] cols, String[] types, Database d) {
         Column[] c = new Column[cols.length];
         for (int i = 0; i < cols.length; i++) {
             if (!types[i].equals("notype")) {
-                c[i] = new Column(cols[i], types[i]);
+                c[i] = Column.create(cols[i], types[i]);
             }
             else {
                 return "ERROR: Type: NOTYPE";
@@ -95,8 +250,8 @@ public class dbParse {
         return "";
     }
 
-    private static String createSelectedTable(String name, String exprs, String tables, String conds, Database d) {
-        Table selected = d.select(exprs, tables.split(","), conds);
+    private static String createSelectedTable(String name, Query q, Database d) {
+        Table selected = (q == null) ? null : d.select(q);
         if (selected != null) {
             d.createTable(name, selected);
             return "";
@@ -104,40 +259,119 @@ public class dbParse {
         return "ERROR: Bad format/typing";
     }
 
+    private static Query bind(Query q, String[] params) {
+        try {
+            return q.bind(params);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     private static String loadTable(Database d, String name) {
         return (d.load(name));
     }
 
-    private static String storeTable(Database d, String name) {
-        return d.store(name);
+    private static String storeTable(Database d, String name, String format) {
+        return d.store(name, format);
     }
 
     private static String dropTable(Database d, String name) {
         return d.drop(name);
     }
 
-    private static String insertRow(Database d, String expr) {
+    private static Plan insertRow(String expr) {
         Matcher m = INSERT_CLS.matcher(expr);
         if (!m.matches()) {
-            return "ERROR: Malformed insert: " + expr + "\n";
+            return Plan.error("ERROR: Malformed insert: " + expr + "\n");
+        }
+        String name = m.group(1);
+        String list = m.group(2).trim();
+        List<String> rows = list.startsWith("(") ? splitRows(list)
+                : Collections.singletonList(list);
+        if (rows == null) {
+            return Plan.error("ERROR: Malformed insert: " + expr + "\n");
+        }
+        String[][] template = new String[rows.size()][];
+        int params = 0;
+        for (int i = 0; i < template.length; i++) {
+            template[i] = splitValues(rows.get(i)).toArray(new String[0]);
+            for (String v : template[i]) {
+                if (v.equals("?")) {
+                    params++;
+                }
+            }
         }
-        int len = (m.group(0).split(COMMA)).length;
-        ArrayList<String> values = new ArrayList();
-        for (int i = 0; i < len; i++) {
-            values.add(m.group(2).split(COMMA)[i]);
+        return Plan.of(params, (d, p) -> {
+            List<List<String>> values = new ArrayList<>(template.length);
+            int next = 0;
+            for (String[] row : template) {
+                List<String> filled = new ArrayList<>(row.length);
+                for (String v : row) {
+                    if (!v.equals("?")) {
+                        filled.add(v);
+                    } else if (next < p.length) {
+                        filled.add(p[next++]);
+                    } else {
+                        return "ERROR: Parameter " + (next + 1) + " is not set.";
+                    }
+                }
+                values.add(filled);
+            }
+            return d.appendBatch(name, values);
+        });
+    }
+
+    private static Plan select(String expr) {
+        Query q;
+        try {
+            q = parseSelect(expr);
+        } catch (IllegalArgumentException e) {
+            return Plan.error(e.getMessage());
         }
-        return d.insert(m.group(1), values);
+        return Plan.ofTable(q.params, (d, p) -> select(d, bind(q, p)),
+                "ERROR: Malformed select statement");
     }
 
-    private static String printTable(Database d, String name) {
-        return String.valueOf(d.print(name));
+    /* Returns a plan printing the operators of a select, running it first if
+    ** 'analyze' is set. */
+    private static Plan explain(String expr, boolean analyze) {
+        Query q;
+        try {
+            q = parseSelect(expr);
+        } catch (IllegalArgumentException e) {
+            return Plan.error(e.getMessage());
+        }
+        return Plan.of(q.params, (d, p) -> {
+            Query bound = bind(q, p);
+            return (bound == null) ? "ERROR: Malformed select statement"
+                    : d.explain(bound, analyze);
+        });
     }
 
-    private static String select(Database d, String expr) {
+    /* Parses the clauses of a select, throwing IllegalArgumentException with
+    ** an error message if they are malformed. */
+    private static Query parseSelect(String expr) {
         Matcher m = SELECT_CLS.matcher(expr);
         if (!m.matches()) {
-            return ("ERROR: Malformed select: " + expr);
-
+            throw new IllegalArgumentException("ERROR: Malformed select: " + expr);
+        }
+        String limit = "";
+        int at = expr.lastIndexOf(" limit ");
+        if (at >= 0) {
+            limit = expr.substring(at + " limit ".length());
+            expr = expr.substring(0, at);
+        }
+        String orderBy = "";
+        at = expr.lastIndexOf(" order by ");
+        if (at >= 0) {
+            orderBy = expr.substring(at + " order by ".length());
+            expr = expr.substring(0, at);
+        }
+        String groupBy = "";
+        at = expr.lastIndexOf(" group by ");
+        if (at >= 0) {
+            groupBy = expr.substring(at + " group by ".length());
+            expr = expr.substring(0, at);
         }
         String[] condSplit = expr.split(" from ");
         String[] secondSplit;
@@ -147,14 +381,15 @@ public class dbParse {
         else {
             secondSplit = new String[] {condSplit[1], ""};
         }
-        return select(d, condSplit[0], secondSplit[0], secondSplit[1]);
+        try {
+            return Query.parse(condSplit[0], secondSplit[0], secondSplit[1], groupBy, orderBy,
+                    limit);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("ERROR: Malformed select statement");
+        }
     }
 
-    private static String select(Database d, String exprs, String tables, String conds) {
-        Table selected = d.select(exprs, tables.split(","), conds);
-        if (selected != null) {
-            return selected.toString();
-        }
-        return "ERROR: Malformed select statement";
+    private static Table select(Database d, Query q) {
+        return (q == null) ? null : d.select(q);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+/* Runs readers and writers against one table at once. Every row a writer
+** inserts has B == 2 * A, so a reader that sees a torn row or a half-applied
+** insert finds a row breaking that rule; the count a reader sees may only
+** grow, and after the writers stop every row must be there exactly once. */
+class ConcurrencyTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int ROWS_PER_WRITER = 2000;
+
+    /* Returns the single value of a one-row, one-column result. */
+    private static int single(String result) {
+        String[] lines = result.trim().split("\n");
+        assertEquals(2, lines.length, result);
+        return Integer.parseInt(lines[1].trim());
+    }
+
+    @Test
+    void readersAndWritersSeeConsistentRows() throws Exception {
+        Database d = new Database();
+        assertEquals("", d.transact("create table t (A int, B int)"));
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS + READERS);
+        try {
+            List<Callable<Integer>> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int first = w * ROWS_PER_WRITER;
+                writers.add(() -> {
+                    for (int k = first; k < first + ROWS_PER_WRITER; k++) {
+                        //Alternate single inserts and batches, which take one lock
+                        if (k % 2 == 0) {
+                            assertEquals("", d.transact("insert into t values " + k + "," + 2 * k));
+                        } else {
+                            List<List<?>> row = new ArrayList<>();
+                            List<Object> cells = new ArrayList<>();
+                            cells.add(k);
+                            cells.add(2 * k);
+                            row.add(cells);
+                            assertEquals("", d.appendBatch("t", row));
+                        }
+                    }
+                    return ROWS_PER_WRITER;
+                });
+            }
+            List<Callable<Integer>> readers = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                readers.add(() -> {
+                    int seen = 0;
+                    int queries = 0;
+                    while (writing.get() || queries == 0) {
+                        assertEquals(0, single(d.transact(
+                                "select count(*) from t where B != A * 2")));
+                        int count = single(d.transact("select count(*) from t"));
+                        assertTrue(count >= seen, "count went from " + seen + " to " + count);
+                        seen = count;
+                        String rows = d.transact("select A, B from t where A >= 0");
+                        for (String line : rows.trim().split("\n")) {
+                            if (line.startsWith("A ")) {
+                                continue;
+                            }
+                            String[] cells = line.split(",");
+                            assertEquals(2 * Integer.parseInt(cells[0]), Integer.parseInt(cells[1]));
+                        }
+                        queries++;
+                    }
+                    return queries;
+                });
+            }
+            List<Future<Integer>> reads = new ArrayList<>();
+            for (Callable<Integer> r : readers) {
+                reads.add(pool.submit(r));
+            }
+            List<Future<Integer>> writes = new ArrayList<>();
+            for (Callable<Integer> w : writers) {
+                writes.add(pool.submit(w));
+            }
+            for (Future<Integer> f : writes) {
+                assertEquals(ROWS_PER_WRITER, (int) f.get(60, TimeUnit.SECONDS));
+            }
+            writing.set(false);
+            for (Future<Integer> f : reads) {
+                assertTrue(f.get(60, TimeUnit.SECONDS) > 0);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        int total = WRITERS * ROWS_PER_WRITER;
+        assertEquals(total, single(d.transact("select count(*) from t")));
+        String[] groups = d.transact("select A, count(*) as n from t group by A").trim()
+                .split("\n");
+        assertEquals(total + 1, groups.length);
+        for (int i = 1; i < groups.length; i++) {
+            assertTrue(groups[i].endsWith(",1"), "row inserted twice: " + groups[i]);
+        }
+        assertEquals(total - 1, single(d.transact("select max(A) as m from t")));
+        assertEquals(0, single(d.transact("select min(A) as m from t")));
+    }
+}